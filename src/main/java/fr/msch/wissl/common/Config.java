@@ -60,12 +60,24 @@ public final class Config {
 
 	private String dbPath = null;
 	private boolean dbClean = false;
+	private boolean dbTcp = false;
+	private int dbPoolMin = 0;
+	private int dbPoolMax = 0;
+	private int dbPoolTimeout = 0;
+	private int dbStatements = 0;
+	private int dbFlushDelay = 0;
+	private int catalogCache = 0;
 	private String dbUser = null;
 	private String dbPassword = null;
 
 	private List<String> musicPaths = null;
 	private int musicRefreshRate = 0;
 	private List<String> musicFormats = null;
+	private boolean musicWatch = false;
+
+	private int indexerReaders = 0;
+	private int indexerWalkers = 0;
+	private boolean indexerDirCache = false;
 
 	private String artworkPath = null;
 	private String artworkMatcher = null;
@@ -140,11 +152,32 @@ public final class Config {
 		this.musicPaths = getList("wsl.music.path", props, true);
 		this.musicRefreshRate = getInt("wsl.music.refresh.rate", props);
 		this.musicFormats = getList("wsl.music.formats", props);
+		this.musicWatch = getBoolean("wsl.music.watch", props, false);
+
+		this.indexerReaders = getInt("wsl.indexer.readers", props, 0);
+		if (this.indexerReaders <= 0) {
+			this.indexerReaders = Runtime.getRuntime().availableProcessors();
+		}
+		this.indexerWalkers = getInt("wsl.indexer.walkers", props, 4);
+		if (this.indexerWalkers <= 0) {
+			this.indexerWalkers = 1;
+		}
+		this.indexerDirCache = getBoolean("wsl.indexer.dircache", props, true);
 
 		this.dbPath = getString("wsl.db.path", props).replace(tmpMacro, tmpdir);
 		this.dbClean = getBoolean("wsl.db.clean", props);
 		this.dbUser = getString("wsl.db.user", props);
 		this.dbPassword = getString("wsl.db.password", props);
+		this.dbTcp = getBoolean("wsl.db.tcp.enabled", props, false);
+		this.dbPoolMin = getInt("wsl.db.pool.min", props, 3);
+		this.dbPoolMax = getInt("wsl.db.pool.max", props, 15);
+		if (this.dbPoolMax < this.dbPoolMin) {
+			this.dbPoolMax = this.dbPoolMin;
+		}
+		this.dbPoolTimeout = getInt("wsl.db.pool.timeout", props, 10000);
+		this.dbStatements = getInt("wsl.db.statements", props, 100);
+		this.dbFlushDelay = getInt("wsl.db.flush.delay", props, 10000);
+		this.catalogCache = getInt("wsl.catalog.cache", props, 32);
 
 		this.artworkPath = getString("wsl.artwork.path", props).replace(
 				tmpMacro, tmpdir);
@@ -184,6 +217,16 @@ public final class Config {
 		}
 	}
 
+	private int getInt(String property, Properties props, int defaultValue) {
+		String v = props.getProperty(property);
+		String value = System.getProperty(property, v);
+		if (value != null && value.trim().length() > 0) {
+			return Integer.parseInt(value.trim());
+		} else {
+			return defaultValue;
+		}
+	}
+
 	private boolean getBoolean(String property, Properties props) {
 		String v = props.getProperty(property);
 		String value = System.getProperty(property, v);
@@ -195,6 +238,17 @@ public final class Config {
 		}
 	}
 
+	private boolean getBoolean(String property, Properties props,
+			boolean defaultValue) {
+		String v = props.getProperty(property);
+		String value = System.getProperty(property, v);
+		if (value != null && value.trim().length() > 0) {
+			return Boolean.parseBoolean(value.trim());
+		} else {
+			return defaultValue;
+		}
+	}
+
 	private List<String> getList(String property, Properties props) {
 		return getList(property, props, false);
 	}
@@ -318,6 +372,61 @@ public final class Config {
 		instance.dbClean = clean;
 	}
 
+	/**
+	 * @return true if the DB is also served over TCP, for external tools
+	 * such as the H2 console. The server itself always uses embedded
+	 * connections
+	 */
+	public static boolean isDbTcpEnabled() {
+		return instance.dbTcp;
+	}
+
+	/**
+	 * @return number of DB connections kept open when idle
+	 */
+	public static int getDbPoolMin() {
+		return instance.dbPoolMin;
+	}
+
+	/**
+	 * @return maximum number of open DB connections
+	 */
+	public static int getDbPoolMax() {
+		return instance.dbPoolMax;
+	}
+
+	/**
+	 * @return milliseconds to wait for a DB connection when all are busy,
+	 * 0 to wait forever
+	 */
+	public static int getDbPoolTimeout() {
+		return instance.dbPoolTimeout;
+	}
+
+	/**
+	 * @return number of prepared statements cached by each DB connection,
+	 * 0 to disable the cache
+	 */
+	public static int getDbStatements() {
+		return instance.dbStatements;
+	}
+
+	/**
+	 * @return milliseconds between two writes to the DB of the bytes
+	 * downloaded by users, 0 to write them after each download
+	 */
+	public static int getDbFlushDelay() {
+		return instance.dbFlushDelay;
+	}
+
+	/**
+	 * @return megabytes of serialized artists, albums and songs
+	 * kept in memory, 0 to serialize them for each request
+	 */
+	public static int getCatalogCache() {
+		return instance.catalogCache;
+	}
+
 	public static String getDbUser() {
 		return instance.dbUser;
 	}
@@ -343,6 +452,35 @@ public final class Config {
 		return instance.musicFormats;
 	}
 
+	/**
+	 * @return true if music folders are watched for changes between scans
+	 */
+	public static boolean isMusicWatchEnabled() {
+		return instance.musicWatch;
+	}
+
+	/**
+	 * @return number of threads reading music file tags when indexing
+	 */
+	public static int getIndexerReaders() {
+		return instance.indexerReaders;
+	}
+
+	/**
+	 * @return number of folders listed concurrently in each music folder
+	 */
+	public static int getIndexerWalkers() {
+		return instance.indexerWalkers;
+	}
+
+	/**
+	 * @return true if folders that did not change since the previous
+	 * scan are not listed again
+	 */
+	public static boolean isIndexerDirCacheEnabled() {
+		return instance.indexerDirCache;
+	}
+
 	public static int getSessionExpirationDelay() {
 		return instance.sessionExpirationDelay;
 	}
@@ -35,7 +35,7 @@ import javax.swing.UIManager;
 
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Server;
-import org.eclipse.jetty.server.bio.SocketConnector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.webapp.WebAppContext;
 
 /**
@@ -168,7 +168,9 @@ final class Launcher {
 
 	static void startServer(int port) {
 		Server server = new Server();
-		SocketConnector connector = new SocketConnector();
+		// NIO connector: idle listeners do not hold a thread, and songs
+		// are written to the socket without being copied in the JVM
+		SelectChannelConnector connector = new SelectChannelConnector();
 
 		connector.setPort(port);
 		server.setConnectors(new Connector[] { connector });
@@ -74,21 +74,19 @@ final class Album implements JSON {
 
 	@Override
 	public String toJSON() {
-		long now = System.currentTimeMillis();
 		StringBuilder str = new StringBuilder();
 		boolean hasArt = (artwork_path != null && artwork_path.trim().length() > 0);
-		str.append('{');
-		str.append("\"id\":" + id + ",");
-		str.append("\"name\":" + JSONObject.quote(name) + ",");
-		str.append("\"date\":" + JSONObject.quote(date) + ",");
-		str.append("\"genre\":" + JSONObject.quote(genre) + ",");
-		str.append("\"songs\":" + songs + ",");
-		str.append("\"playtime\":" + playtime + ",");
-		str.append("\"date_added\":" + (now - date_added) + ",");
-		str.append("\"artist\":" + artist_id + ",");
-		str.append("\"artist_name\":" + JSONObject.quote(artist_name) + ",");
-		str.append("\"artwork\":" + hasArt + ",");
-		str.append("\"artwork_id\":" + JSONObject.quote(artwork_id));
+		str.append("{\"id\":").append(id);
+		str.append(",\"name\":").append(JSONObject.quote(name));
+		str.append(",\"date\":").append(JSONObject.quote(date));
+		str.append(",\"genre\":").append(JSONObject.quote(genre));
+		str.append(",\"songs\":").append(songs);
+		str.append(",\"playtime\":").append(playtime);
+		str.append(",\"date_added\":").append(date_added);
+		str.append(",\"artist\":").append(artist_id);
+		str.append(",\"artist_name\":").append(JSONObject.quote(artist_name));
+		str.append(",\"artwork\":").append(hasArt);
+		str.append(",\"artwork_id\":").append(JSONObject.quote(artwork_id));
 		str.append('}');
 		return str.toString();
 	}
@@ -57,15 +57,13 @@ final class Artist implements JSON {
 
 	@Override
 	public String toJSON() {
-		long now = System.currentTimeMillis();
 		StringBuilder str = new StringBuilder();
-		str.append('{');
-		str.append("\"id\":" + id + ",");
-		str.append("\"name\":" + JSONObject.quote(name) + ",");
-		str.append("\"albums\":" + albums + ",");
-		str.append("\"songs\":" + songs + ",");
-		str.append("\"date_added\":" + (now - date_added) + ",");
-		str.append("\"playtime\":" + playtime);
+		str.append("{\"id\":").append(id);
+		str.append(",\"name\":").append(JSONObject.quote(name));
+		str.append(",\"albums\":").append(albums);
+		str.append(",\"songs\":").append(songs);
+		str.append(",\"date_added\":").append(date_added);
+		str.append(",\"playtime\":").append(playtime);
 		str.append('}');
 		return str.toString();
 	}
@@ -0,0 +1,115 @@
+/* This file is part of Wissl - Copyright (C) 2013 Mathieu Schnoor
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.msch.wissl.server;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Single byte range requested by the HTTP 'Range' header, see RFC 7233.
+ * <p>
+ * Requests for several ranges are answered with the whole file,
+ * which the RFC allows, as players only ask for one range at a time.
+ *
+ * @author mathieu.schnoor@gmail.com
+ *
+ */
+final class ByteRange {
+
+	private static final Pattern RANGE = Pattern
+			.compile("\\s*bytes\\s*=\\s*([0-9]*)\\s*-\\s*([0-9]*)\\s*");
+
+	/** position of the first byte */
+	final long start;
+	/** position of the last byte, included */
+	final long end;
+	/** length of the whole file */
+	final long total;
+
+	private ByteRange(long start, long end, long total) {
+		this.start = start;
+		this.end = end;
+		this.total = total;
+	}
+
+	/**
+	 * @param header value of the 'Range' header, or null
+	 * @param length length of the file
+	 * @return requested range, null if the whole file must be sent
+	 * @throws IllegalStateException if the range is outside the file,
+	 * to be answered by 416 'Range Not Satisfiable'
+	 */
+	static ByteRange parse(String header, long length) {
+		if (header == null) {
+			return null;
+		}
+		Matcher m = RANGE.matcher(header);
+		if (!m.matches()) {
+			// several ranges, other unit or invalid syntax
+			return null;
+		}
+
+		String first = m.group(1), last = m.group(2);
+		long start, end;
+		if (first.length() == 0) {
+			if (last.length() == 0) {
+				return null;
+			}
+			// suffix: last bytes of the file
+			long suffix = toLong(last);
+			if (suffix == 0) {
+				throw new IllegalStateException("Empty range: " + header);
+			}
+			start = Math.max(0, length - suffix);
+			end = length - 1;
+		} else {
+			start = toLong(first);
+			end = (last.length() == 0 ? length - 1 : Math.min(toLong(last),
+					length - 1));
+			if (last.length() > 0 && toLong(last) < start) {
+				return null;
+			}
+		}
+		if (start >= length) {
+			throw new IllegalStateException("Range " + header
+					+ " outside file of length " + length);
+		}
+		return new ByteRange(start, end, length);
+	}
+
+	/**
+	 * @return number of bytes of the range
+	 */
+	long length() {
+		return end - start + 1;
+	}
+
+	/**
+	 * @return value of the 'Content-Range' header of the response
+	 */
+	String toContentRange() {
+		return "bytes " + start + "-" + end + "/" + total;
+	}
+
+	/** huge positions are past the end of any file */
+	private static long toLong(String digits) {
+		try {
+			return Long.parseLong(digits);
+		} catch (NumberFormatException e) {
+			return Long.MAX_VALUE;
+		}
+	}
+}
@@ -0,0 +1,418 @@
+/* This file is part of Wissl - Copyright (C) 2013 Mathieu Schnoor
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.msch.wissl.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Immutable snapshot of all artists, albums and songs, used to serve
+ * browsing and search requests without querying the DB.
+ * <p>
+ * Lists are sorted once, in the order of the equivalent DB queries.
+ * A new snapshot replaces the previous one each time the library changes,
+ * see {@link DB#updateCatalog()}. Returned objects and lists are
+ * shared between requests and must not be modified.
+ *
+ * @author mathieu.schnoor@gmail.com
+ *
+ */
+final class Catalog {
+
+	/** changes each time the library changes */
+	private final long version;
+	/** all artists, by name ignoring case */
+	private final List<Artist> artists;
+	/** all artists, most recently added first */
+	private final List<Artist> latestArtists;
+	/** all albums, most recently added first */
+	private final List<Album> latestAlbums;
+	/** all songs, to pick random songs from */
+	private final List<Song> songs;
+	/** songs by lower case genre of their album */
+	private final Map<String, List<Song>> songsByGenre;
+
+	private final IntMap<Artist> artistById;
+	private final IntMap<Album> albumById;
+	private final IntMap<Song> songById;
+	/** albums of each artist, by date then name */
+	private final IntMap<List<Album>> albumsByArtist;
+	/** songs of each album, by disc then position */
+	private final IntMap<List<Song>> songsByAlbum;
+	/** artwork id by album id, for each artist */
+	private final IntMap<Map<Integer, String>> artworksByArtist;
+
+	private final SearchIndex artistIndex;
+	private final SearchIndex albumIndex;
+	private final SearchIndex songIndex;
+
+	/** serialized artists */
+	private final JSONCache artistJSON;
+	/** serialized albums */
+	private final JSONCache albumJSON;
+	/** serialized songs */
+	private final JSONCache songJSON;
+
+	/**
+	 * Build a snapshot, the lists are sorted in place
+	 * @param version greater than the version of previous snapshots
+	 * @param artists all artists
+	 * @param albums all albums
+	 * @param songs all songs
+	 * @param cacheBytes most bytes of serialized elements kept in memory
+	 */
+	Catalog(long version, List<Artist> artists, List<Album> albums,
+			List<Song> songs, long cacheBytes) {
+		this.version = version;
+		artistJSON = new JSONCache(cacheBytes / 4);
+		albumJSON = new JSONCache(cacheBytes / 4);
+		songJSON = new JSONCache(cacheBytes / 2);
+		SearchIndex.Builder index = new SearchIndex.Builder();
+		artistById = new IntMap<Artist>(artists.size());
+		for (Artist ar : artists) {
+			artistById.put(ar.id, ar);
+			index.add(ar.id, ar.name);
+		}
+		artistIndex = index.build();
+
+		index = new SearchIndex.Builder();
+		albumById = new IntMap<Album>(albums.size());
+		albumsByArtist = new IntMap<List<Album>>(artists.size());
+		artworksByArtist = new IntMap<Map<Integer, String>>(artists.size());
+		Collections.sort(albums, new Comparator<Album>() {
+			@Override
+			public int compare(Album a1, Album a2) {
+				int c = compareNullFirst(a1.date, a2.date);
+				return (c != 0 ? c : compareNullFirst(a1.name, a2.name));
+			}
+		});
+		for (Album al : albums) {
+			albumById.put(al.id, al);
+			index.add(al.id, al.name);
+			List<Album> li = albumsByArtist.get(al.artist_id);
+			if (li == null) {
+				li = new ArrayList<Album>();
+				albumsByArtist.put(al.artist_id, li);
+			}
+			li.add(al);
+
+			if (al.artwork_path != null && !"null".equals(al.artwork_path)) {
+				Map<Integer, String> art = artworksByArtist.get(al.artist_id);
+				if (art == null) {
+					art = new LinkedHashMap<Integer, String>();
+					artworksByArtist.put(al.artist_id, art);
+				}
+				art.put(al.id, al.artwork_id);
+			}
+		}
+		albumIndex = index.build();
+
+		index = new SearchIndex.Builder();
+		songById = new IntMap<Song>(songs.size());
+		songsByAlbum = new IntMap<List<Song>>(albums.size());
+		Collections.sort(songs, new Comparator<Song>() {
+			@Override
+			public int compare(Song s1, Song s2) {
+				if (s1.disc_no != s2.disc_no) {
+					return (s1.disc_no < s2.disc_no ? -1 : 1);
+				}
+				return (s1.position < s2.position ? -1
+						: (s1.position == s2.position ? 0 : 1));
+			}
+		});
+		songsByGenre = new HashMap<String, List<Song>>();
+		for (Song s : songs) {
+			songById.put(s.id, s);
+			index.add(s.id, s.title);
+			List<Song> li = songsByAlbum.get(s.album_id);
+			if (li == null) {
+				li = new ArrayList<Song>();
+				songsByAlbum.put(s.album_id, li);
+			}
+			li.add(s);
+
+			Album al = albumById.get(s.album_id);
+			if (al != null && al.genre != null) {
+				String genre = al.genre.toLowerCase(Locale.ENGLISH);
+				li = songsByGenre.get(genre);
+				if (li == null) {
+					li = new ArrayList<Song>();
+					songsByGenre.put(genre, li);
+				}
+				li.add(s);
+			}
+		}
+		songIndex = index.build();
+		this.songs = songs;
+
+		List<Artist> latest = new ArrayList<Artist>(artists);
+		Collections.sort(latest, new Comparator<Artist>() {
+			@Override
+			public int compare(Artist a1, Artist a2) {
+				return compareLatest(a1.date_added, a1.id, a2.date_added,
+						a2.id);
+			}
+		});
+		latestArtists = Collections.unmodifiableList(latest);
+
+		List<Album> latestAl = new ArrayList<Album>(albums);
+		Collections.sort(latestAl, new Comparator<Album>() {
+			@Override
+			public int compare(Album a1, Album a2) {
+				return compareLatest(a1.date_added, a1.id, a2.date_added,
+						a2.id);
+			}
+		});
+		latestAlbums = Collections.unmodifiableList(latestAl);
+
+		Collections.sort(artists, new Comparator<Artist>() {
+			@Override
+			public int compare(Artist a1, Artist a2) {
+				return String.CASE_INSENSITIVE_ORDER.compare(a1.name, a2.name);
+			}
+		});
+		this.artists = Collections.unmodifiableList(artists);
+	}
+
+	/**
+	 * @return empty snapshot
+	 */
+	static Catalog empty() {
+		return new Catalog(0, new ArrayList<Artist>(), new ArrayList<Album>(),
+				new ArrayList<Song>(), 0);
+	}
+
+	/**
+	 * @return version of the library, greater for more recent snapshots,
+	 * also across server restarts
+	 */
+	long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @param ar artist of this snapshot
+	 * @return {@link Artist#toJSON()} in UTF-8
+	 */
+	byte[] getJSON(Artist ar) {
+		byte[] ret = artistJSON.get(ar.id);
+		return (ret != null ? ret : artistJSON.put(ar.id, ar.toJSON()));
+	}
+
+	/**
+	 * @param al album of this snapshot
+	 * @return {@link Album#toJSON()} in UTF-8
+	 */
+	byte[] getJSON(Album al) {
+		byte[] ret = albumJSON.get(al.id);
+		return (ret != null ? ret : albumJSON.put(al.id, al.toJSON()));
+	}
+
+	/**
+	 * @param s song of this snapshot
+	 * @return {@link Song#toJSON()} in UTF-8
+	 */
+	byte[] getJSON(Song s) {
+		byte[] ret = songJSON.get(s.id);
+		return (ret != null ? ret : songJSON.put(s.id, s.toJSON()));
+	}
+
+	/**
+	 * @return all artists, sorted by name
+	 */
+	List<Artist> getArtists() {
+		return artists;
+	}
+
+	/**
+	 * @return artist or null if it does not exist
+	 */
+	Artist getArtist(int artist_id) {
+		return artistById.get(artist_id);
+	}
+
+	/**
+	 * @return albums of an artist, sorted by date then name
+	 */
+	List<Album> getAlbums(int artist_id) {
+		List<Album> ret = albumsByArtist.get(artist_id);
+		if (ret == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(ret);
+	}
+
+	/**
+	 * @return album or null if it does not exist
+	 */
+	Album getAlbum(int album_id) {
+		return albumById.get(album_id);
+	}
+
+	/**
+	 * @return songs of an album, sorted by disc then position
+	 */
+	List<Song> getSongs(int album_id) {
+		List<Song> ret = songsByAlbum.get(album_id);
+		if (ret == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(ret);
+	}
+
+	/**
+	 * @return song or null if it does not exist. Its file path is not set.
+	 */
+	Song getSong(int song_id) {
+		return songById.get(song_id);
+	}
+
+	/**
+	 * @return artwork id by album id for the albums
+	 * of an artist having an artwork, never null
+	 */
+	Map<Integer, String> getArtworks(int artist_id) {
+		Map<Integer, String> ret = artworksByArtist.get(artist_id);
+		if (ret == null) {
+			return Collections.emptyMap();
+		}
+		return Collections.unmodifiableMap(ret);
+	}
+
+	/**
+	 * @param number maximum number of artists
+	 * @return most recently added artists first
+	 */
+	List<Artist> getLatestArtists(int number) {
+		return latestArtists.subList(0, limit(number, latestArtists.size()));
+	}
+
+	/**
+	 * @param number maximum number of albums
+	 * @return most recently added albums first
+	 */
+	List<Album> getLatestAlbums(int number) {
+		return latestAlbums.subList(0, limit(number, latestAlbums.size()));
+	}
+
+	/**
+	 * Pick distinct songs at random, in time proportional to the number
+	 * of songs picked rather than to the size of the library.
+	 * @param number maximum number of songs
+	 * @param genre only pick songs of albums of that genre, ignoring case,
+	 * or null for any genre
+	 * @param maxPerArtist maximum number of songs of a single artist,
+	 * or 0 for no limit
+	 * @param rand source of randomness
+	 * @return random songs, fewer than requested if there are not enough
+	 * songs matching the constraints
+	 */
+	List<Song> getRandomSongs(int number, String genre, int maxPerArtist,
+			Random rand) {
+		List<Song> pool = songs;
+		if (genre != null && genre.trim().length() > 0) {
+			pool = songsByGenre.get(genre.trim().toLowerCase(Locale.ENGLISH));
+			if (pool == null) {
+				return new ArrayList<Song>();
+			}
+		}
+
+		List<Song> ret = new ArrayList<Song>();
+		// shuffle the pool lazily, only remembering the swapped positions:
+		// after each step, the first i+1 positions hold distinct random songs
+		IntMap<Integer> swapped = new IntMap<Integer>(number * 2);
+		IntMap<Integer> perArtist = new IntMap<Integer>();
+		int size = pool.size();
+		for (int i = 0; i < size && ret.size() < number; i++) {
+			int j = i + rand.nextInt(size - i);
+			Integer atJ = swapped.get(j);
+			Integer atI = swapped.get(i);
+			swapped.put(j, (atI == null ? i : atI));
+			Song s = pool.get(atJ == null ? j : atJ);
+
+			if (maxPerArtist > 0) {
+				Integer count = perArtist.get(s.artist_id);
+				int c = (count == null ? 0 : count);
+				if (c >= maxPerArtist) {
+					continue;
+				}
+				perArtist.put(s.artist_id, c + 1);
+			}
+			ret.add(s);
+		}
+		return ret;
+	}
+
+	/**
+	 * @see DB#searchArtist(String, int)
+	 */
+	List<Artist> searchArtist(String name, int maxResults) {
+		List<Artist> ret = new ArrayList<Artist>();
+		for (int id : artistIndex.search(name, maxResults)) {
+			ret.add(artistById.get(id));
+		}
+		return ret;
+	}
+
+	/**
+	 * @see DB#searchAlbum(String, int)
+	 */
+	List<Album> searchAlbum(String title, int maxResults) {
+		List<Album> ret = new ArrayList<Album>();
+		for (int id : albumIndex.search(title, maxResults)) {
+			ret.add(albumById.get(id));
+		}
+		return ret;
+	}
+
+	/**
+	 * @see DB#searchSong(String, int)
+	 */
+	List<Song> searchSong(String title, int maxResults) {
+		List<Song> ret = new ArrayList<Song>();
+		for (int id : songIndex.search(title, maxResults)) {
+			ret.add(songById.get(id));
+		}
+		return ret;
+	}
+
+	/** negative numbers mean no limit, as in SQL */
+	private static int limit(int number, int size) {
+		return (number < 0 || number > size ? size : number);
+	}
+
+	private static int compareNullFirst(String s1, String s2) {
+		if (s1 == null) {
+			return (s2 == null ? 0 : -1);
+		}
+		return (s2 == null ? 1 : s1.compareTo(s2));
+	}
+
+	/** most recent first, then highest id first */
+	private static int compareLatest(long date1, int id1, long date2, int id2) {
+		if (date1 != date2) {
+			return (date1 > date2 ? -1 : 1);
+		}
+		return (id1 > id2 ? -1 : (id1 == id2 ? 0 : 1));
+	}
+}
@@ -17,9 +17,9 @@ package fr.msch.wissl.server;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import org.jboss.resteasy.spi.NotFoundException;
 
@@ -64,12 +64,27 @@ abstract class DB {
 	protected abstract Connection getConnection() throws SQLException;
 
 	/**
-	 * Insert a Song into DB, inserting as well Artist & Album if they are not already known
+	 * @return connection pool health as JSON object
+	 * @throws SQLException
+	 */
+	public abstract String getPoolStatsAsJSON() throws SQLException;
+
+	/**
+	 * Insert a Song into DB, inserting as well Artist & Album if they are not already known.
+	 * If a song with the same hash is already present, it is updated instead.
 	 * @param song a song with a non null Artist and Album linked
 	 * @throws SQLException
 	 */
 	public abstract void addSong(Song song) throws SQLException;
 
+	/**
+	 * Insert or update several Songs in a single transaction,
+	 * like {@link #addSong(Song)}. Nothing is inserted if it fails.
+	 * @param songs non empty list of songs with a non null Artist and Album linked
+	 * @throws SQLException
+	 */
+	public abstract void addSongs(List<Song> songs) throws SQLException;
+
 	/**
 	 * Insert a new User record into DB
 	 * @param user user to insert
@@ -118,11 +133,13 @@ abstract class DB {
 	public abstract void removeUser(int uid) throws SQLException;
 
 	/**
-	 * Goes through all songs/albums/artists to update album count, song count,
-	 * playtime and delete empty albums/artists
+	 * Update album count, song count and playtime of the albums/artists
+	 * whose songs changed since the last call, and delete empty albums/artists
+	 * @return true if songs were added, changed or removed since the last
+	 * call, ie. {@link #updateCatalog()} is needed
 	 * @throws SQLException
 	 */
-	public abstract void updateSongCount() throws SQLException;
+	public abstract boolean updateSongCount() throws SQLException;
 
 	/**
 	 * Create new playlist, return existing playlist if it exists
@@ -172,6 +189,24 @@ abstract class DB {
 			int[] song_ids, int user_id) throws SQLException,
 			NotFoundException, ForbiddenException;
 
+	/**
+	 * Move songs to another place in the given playlist.
+	 * Other songs keep their order, as well as the moved songs
+	 * among themselves
+	 * @param playlist_id unique id of the playlist
+	 * @param song_ids unique id of the songs to move, in their new order
+	 * @param index position of the first moved song in the playlist
+	 * once the songs are moved, from 0
+	 * @param user_id id of the user requesting songs to be moved
+	 * @return number of moved songs
+	 * @throws SQLException
+	 * @throws ForbiddenException 
+	 * @throws NotFoundException 
+	 */
+	public abstract int moveSongsInPlaylist(int playlist_id, int[] song_ids,
+			int index, int user_id) throws SQLException, NotFoundException,
+			ForbiddenException;
+
 	/**
 	 * Remove playlists
 	 * @param playlist_ids unique ids of the playlist
@@ -224,7 +259,7 @@ abstract class DB {
 	/**
 	 * Return the song at the given position in the given playlist
 	 * @param playlist_id unique playlist ID in DB
-	 * @param position song position in the playlist
+	 * @param position index of the song in the playlist, from 0
 	 * @return the corresponding song, or null
 	 * @throws SQLException
 	 */
@@ -232,76 +267,72 @@ abstract class DB {
 			throws SQLException;
 
 	/**
-	 * @param hash MD5 hash of a song filepath
-	 * @return true if the DB already contains a song with the same hashed filepath value
-	 * @throws SQLException
-	 */
-	public abstract boolean hasSong(String hash) throws SQLException;
-
-	/**
-	 * @return all artists in DB, or an empty list
+	 * Read in a single query the path, size and modification time recorded
+	 * for each indexed file, so that the indexer can tell which files changed
+	 * @param files receives the path hash of each indexed file
+	 * @param states receives, for each indexed file, the hash of its path,
+	 *  size and modification time, see {@link Library#hashState(long, long, long)}
 	 * @throws SQLException
 	 */
-	public abstract List<Artist> getArtists() throws SQLException;
-
-	/**
-	 * @param id id of an artist in DB
-	 * @return one specific artist, or null
-	 * @throws SQLException
-	 */
-	public abstract Artist getArtist(int id) throws SQLException;
-
-	/**
-	 * @param artist_id valid value for artist.artist_id in DB 
-	 * @return all albums from the artist corresponding the id, or an empty list
-	 * @throws SQLException
-	 */
-	public abstract List<Album> getAlbums(int artist_id) throws SQLException;
+	public abstract void getSongManifest(LongSet files, LongSet states)
+			throws SQLException;
 
 	/**
-	 * @param number maximum number of albums to return
-	 * @return the latest albums to have been added in the DB
+	 * @param id id of an album in DB
+	 * @return the album matching the id, or null
 	 * @throws SQLException
 	 */
-	public abstract List<Album> getLatestAlbums(int number) throws SQLException;
+	public abstract Album getAlbum(int id) throws SQLException;
 
 	/**
-	 * @param number maximum number of albums to return
-	 * @return the latest artists to have been added in the DB
+	 * Mark songs as found by the indexer during a scan
+	 * @param hashes path hashes of songs found on disk
+	 * @param generation identifies the current scan, greater than the previous one
 	 * @throws SQLException
 	 */
-	public abstract List<Artist> getLatestArtists(int number)
+	public abstract void markSongs(long[] hashes, long generation)
 			throws SQLException;
 
 	/**
-	 * @param id id of an album in DB
-	 * @return the album matching the id, or null
+	 * Mark all songs directly in the given folders as found by the indexer
+	 * during a scan, without having to list these folders
+	 * @param paths absolute paths of folders that did not change
+	 * @param generation identifies the current scan, greater than the previous one
 	 * @throws SQLException
 	 */
-	public abstract Album getAlbum(int id) throws SQLException;
+	public abstract void markSongsInDirectories(List<String> paths,
+			long generation) throws SQLException;
 
 	/**
-	 * @param album_id valid value for album.album_id in DB
-	 * @return all songs from the album corresponding the id, or an empty list
+	 * Remove all songs that were neither marked nor added since
+	 * the given scan generation started
+	 * @param generation generation of the scan that just completed
+	 * @return number of removed entries
 	 * @throws SQLException
 	 */
-	public abstract List<Song> getSongs(int album_id) throws SQLException;
+	public abstract int removeSongs(long generation) throws SQLException;
 
 	/**
-	 * Remove all songs that do not match the given hashes
-	 * @param hashesToKeep hashes of the songs to keep in DB
+	 * Remove the song with the given file path, or all songs in
+	 * the given directory and its subdirectories
+	 * @param path absolute path of a file or directory
 	 * @return number of removed entries
 	 * @throws SQLException
 	 */
-	public abstract int removeSongs(Set<String> hashesToKeep)
-			throws SQLException;
+	public abstract int removeSongsInPath(String path) throws SQLException;
 
 	/**
 	 * @param num number of random songs
-	 * @return random songs
+	 * @param genre only pick songs of albums of that genre, ignoring case,
+	 * or null for any genre
+	 * @param maxPerArtist maximum number of songs of a single artist,
+	 * or 0 for no limit
+	 * @return distinct random songs, fewer than requested when
+	 * not enough songs match
 	 * @throws SQLException
 	 */
-	public abstract List<Song> getRandomSongs(int num) throws SQLException;
+	public abstract List<Song> getRandomSongs(int num, String genre,
+			int maxPerArtist) throws SQLException;
 
 	/**
 	 * @param song_id value for song.song_id in DB
@@ -325,13 +356,9 @@ abstract class DB {
 	public abstract String getAlbumArtwork(int album_id) throws SQLException;
 
 	/**
-	 * @return maps artist_id with a par of album_id:artwork_id for each album that has an artwork
-	 * @throws SQLException
-	 */
-	public abstract Map<Integer, Map<Integer, String>> getAlbumArtworks()
-			throws SQLException;
-
-	/**
+	 * Downloaded bytes may be kept in memory and written later,
+	 * users returned by {@link #getUser(int)} and {@link #getUsers()}
+	 * include them anyway
 	 * @param uid unique user uid to update
 	 * @param bytes bytes to add to the downloaded total
 	 * @throws SQLException
@@ -407,9 +434,25 @@ abstract class DB {
 	public abstract long getTotalSongDuration() throws SQLException;
 
 	/**
-	 * @param title partial artist name
+	 * Replace the in-memory snapshot of the library and its search index
+	 * with the artists, albums and songs currently in DB.
+	 * Called when the library changes: after indexing and edition.
+	 * Each snapshot has a greater version than the previous one,
+	 * see {@link Catalog#getVersion()}
+	 * @throws SQLException
+	 */
+	public abstract void updateCatalog() throws SQLException;
+
+	/**
+	 * @return last snapshot of the library, read without querying the DB
+	 */
+	public abstract Catalog getCatalog();
+
+	/**
+	 * @param title beginning of words of the artist name
 	 * @param maxResults maximum number of results
-	 * @return artists matching the provided artist name, ignoring case.
+	 * @return artists matching the provided artist name, ignoring case
+	 *  and accents, best matches first.
 	 *  ie parameter 'roll' will match artist 'The Rolling Stones'
 	 * @throws SQLException
 	 */
@@ -417,9 +460,10 @@ abstract class DB {
 			throws SQLException;
 
 	/**
-	 * @param title partial album title
+	 * @param title beginning of words of the album title
 	 * @param maxResults maximum number of results
-	 * @return albums matching the provided album title, ignoring case.
+	 * @return albums matching the provided album title, ignoring case
+	 *  and accents, best matches first.
 	 *  ie parameter 'sou' will match album 'Rubber Soul'
 	 * @throws SQLException
 	 */
@@ -427,9 +471,10 @@ abstract class DB {
 			throws SQLException;
 
 	/**
-	 * @param title partial song title
+	 * @param title beginning of words of the song title
 	 * @param maxResults maximum number of results
-	 * @return songs matching the provided song title, ignoring case.
+	 * @return songs matching the provided song title, ignoring case
+	 *  and accents, best matches first.
 	 *  ie parameter 'hun' will match song 'The Hunter'
 	 * @throws SQLException
 	 */
@@ -502,4 +547,23 @@ abstract class DB {
 	 */
 	public abstract List<String> getFolders() throws SQLException;
 
+	/**
+	 * @return all folders walked by the indexer during the last full scan,
+	 * by absolute path
+	 * @throws SQLException
+	 */
+	public abstract Map<String, LibraryWalker.Directory> getDirectories()
+			throws SQLException;
+
+	/**
+	 * Replace the folders walked by the indexer by those walked
+	 * during the last full scan
+	 * @param dirs all folders walked during the scan
+	 * @param generation identifies the scan
+	 * @throws SQLException
+	 */
+	public abstract void setDirectories(
+			Collection<LibraryWalker.Directory> dirs, long generation)
+			throws SQLException;
+
 }
@@ -0,0 +1,186 @@
+/* This file is part of Wissl - Copyright (C) 2013 Mathieu Schnoor
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.msch.wissl.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sends a part of a file to an HTTP response.
+ * <p>
+ * When the response is written by Jetty, the part of the file is mapped
+ * in memory and given to the connection as a single buffer: with NIO
+ * connectors, it is written to the socket by the kernel without being
+ * copied in the JVM, and the thread serving the request is released
+ * as soon as the response is queued.
+ * Otherwise, or when the part is longer than {@link Integer#MAX_VALUE}
+ * bytes which cannot be mapped at once, the file is read from its channel
+ * in buffers sized after the length to send, up to {@link #MAX_BUFFER}.
+ * <p>
+ * Jetty classes are hidden from web applications,
+ * so its connection output is used through reflection.
+ *
+ * @author mathieu.schnoor@gmail.com
+ *
+ */
+final class FileSender {
+
+	/** smallest buffer used to copy a file */
+	static final int MIN_BUFFER = 8 * 1024;
+	/** largest buffer used to copy a file */
+	static final int MAX_BUFFER = 256 * 1024;
+
+	/** class of the Jetty connection output, null if not found yet */
+	private static volatile Class<?> jettyOutput = null;
+	/** AbstractHttpConnection.Output#sendContent(Object) */
+	private static volatile Method sendContent = null;
+	/** DirectNIOBuffer(ByteBuffer, boolean) */
+	private static volatile Constructor<?> directBuffer = null;
+	/** set after a failure, to always copy files from then on */
+	private static volatile boolean disabled = false;
+
+	private FileSender() {
+	}
+
+	/**
+	 * Send a part of a file, the response headers must have been set
+	 * @param f file to send
+	 * @param start position of the first byte to send
+	 * @param length number of bytes to send
+	 * @param out response body, nothing must have been written yet
+	 * @return number of bytes sent or queued to be sent
+	 * @throws IOException
+	 */
+	static long send(File f, long start, long length, OutputStream out)
+			throws IOException {
+		if (length <= 0) {
+			return 0;
+		}
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (!disabled && length <= Integer.MAX_VALUE && isJetty(out)) {
+				MappedByteBuffer mapped = channel.map(
+						FileChannel.MapMode.READ_ONLY, start, length);
+				if (sendMapped(mapped, out)) {
+					return length;
+				}
+			}
+			return copy(channel, start, length, out);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Copy a part of a file through a buffer
+	 * @param channel file to send
+	 * @param start position of the first byte to send
+	 * @param length number of bytes to send
+	 * @param out response body
+	 * @return number of bytes sent
+	 * @throws IOException
+	 */
+	static long copy(FileChannel channel, long start, long length,
+			OutputStream out) throws IOException {
+		int size = (int) Math.max(MIN_BUFFER, Math.min(MAX_BUFFER, length));
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		long position = start;
+		long end = start + length;
+		while (position < end) {
+			buf.clear();
+			if (end - position < size) {
+				buf.limit((int) (end - position));
+			}
+			int read = channel.read(buf, position);
+			if (read < 0) {
+				break;
+			}
+			out.write(buf.array(), 0, read);
+			position += read;
+		}
+		return position - start;
+	}
+
+	/**
+	 * @return true if the stream is the output of a Jetty connection
+	 */
+	private static boolean isJetty(OutputStream out) {
+		Class<?> cl = jettyOutput;
+		if (cl != null) {
+			return cl == out.getClass();
+		}
+		if (!"org.eclipse.jetty.server.AbstractHttpConnection$Output"
+				.equals(out.getClass().getName())) {
+			return false;
+		}
+
+		try {
+			ClassLoader loader = out.getClass().getClassLoader();
+			Class<?> buffer = loader.loadClass("org.eclipse.jetty.io.Buffer");
+			Class<?> direct = loader
+					.loadClass("org.eclipse.jetty.io.nio.DirectNIOBuffer");
+			if (!buffer.isAssignableFrom(direct)) {
+				disabled = true;
+				return false;
+			}
+			directBuffer = direct.getConstructor(ByteBuffer.class,
+					boolean.class);
+			sendContent = out.getClass().getMethod("sendContent",
+					Object.class);
+			jettyOutput = out.getClass();
+			return true;
+		} catch (Exception e) {
+			Logger.warn("Cannot send files through Jetty, copying them", e);
+			disabled = true;
+			return false;
+		}
+	}
+
+	/**
+	 * @return false if the buffer could not be given to Jetty,
+	 * and nothing was sent
+	 */
+	private static boolean sendMapped(MappedByteBuffer mapped,
+			OutputStream out) throws IOException {
+		try {
+			sendContent.invoke(out, directBuffer.newInstance(mapped, true));
+			return true;
+		} catch (InvocationTargetException e) {
+			Throwable t = e.getCause();
+			if (t instanceof IOException) {
+				throw (IOException) t;
+			}
+			if (t instanceof IllegalStateException) {
+				// part of the response was already written
+				throw new IOException(t);
+			}
+			throw new IOException("Failed to send file", t);
+		} catch (Exception e) {
+			Logger.warn("Cannot send files through Jetty, copying them", e);
+			disabled = true;
+			return false;
+		}
+	}
+}
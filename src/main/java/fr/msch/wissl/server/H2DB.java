@@ -15,17 +15,31 @@
  */
 package fr.msch.wissl.server;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.h2.tools.Server;
 import org.jboss.resteasy.spi.NotFoundException;
@@ -37,7 +51,8 @@ import fr.msch.wissl.common.Config;
 import fr.msch.wissl.server.exception.ForbiddenException;
 
 /**
- * DB Implementation using H2 server through JDBC and c3p0 connection pooling
+ * DB Implementation using embedded H2 through JDBC and c3p0 connection pooling.
+ * The DB can also be served over TCP for external tools
  * 
  * 
  * @author mathieu.schnoor@gmail.com
@@ -47,31 +62,101 @@ final class H2DB extends DB {
 
 	/* This number should be incremented each time the DB Schema changes.
 	 * It is written in the DB so that we decide on startup whether 
-	 * the DB can be recovered or needs to be erased */
-	private static final long SCHEMA_VERSION = 11L;
+	 * the DB can be recovered, migrated or needs to be erased.
+	 * Each new version should come with a step in migrateTo() */
+	private static final long SCHEMA_VERSION = 16L;
+
+	/** oldest schema version that can be migrated, older DBs are erased */
+	private static final long MIGRATE_FROM = 11L;
 
 	private static final String driver = "org.h2.Driver";
 	private static final String protocol = "jdbc:h2:";
 
+	/** TCP server for external tools, null if disabled */
 	private Server server = null;
 
 	private ComboPooledDataSource pool;
 
 	private boolean closed = false;
 
+	/** connections taken from the pool since startup */
+	private final AtomicLong checkouts = new AtomicLong();
+	/** cumulated time spent waiting for a connection, in nanoseconds */
+	private final AtomicLong checkoutTime = new AtomicLong();
+
+	/** bytes downloaded by each user and not written yet,
+	 * see {@link #flushDownloadedBytes()} */
+	private final ConcurrentHashMap<Integer, AtomicLong> downloads = new ConcurrentHashMap<Integer, AtomicLong>();
+	/** writes downloaded bytes periodically, null if they are written
+	 * after each download */
+	private Thread flusher = null;
+
+	/** artist ids by name, used when adding songs in bulk */
+	private final Map<String, Integer> artistIdCache = new ConcurrentHashMap<String, Integer>();
+	/** album ids by artist id and album name, see {@link #addSongs(List)} */
+	private final Map<String, Integer> albumIdCache = new ConcurrentHashMap<String, Integer>();
+
+	/** albums which songs changed since {@link #updateSongCount()} */
+	private final Set<Integer> dirtyAlbums = Collections
+			.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	/** artists which albums or songs changed since {@link #updateSongCount()} */
+	private final Set<Integer> dirtyArtists = Collections
+			.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	/** recompute all albums and artists on next {@link #updateSongCount()},
+	 * the dirty sets are lost when the server stops */
+	private volatile boolean allDirty = true;
+	/** above that many dirty ids, all albums or artists are recomputed */
+	private static final int MAX_DIRTY = 1000;
+
+	/** most ids bound to a single statement, see {@link #chunk(int[])} */
+	private static final int MAX_IDS = 256;
+
+	/** distance between the positions of consecutive playlist songs,
+	 * songs are inserted in the gaps without moving the others */
+	private static final int POSITION_GAP = 1024;
+
+	/** last snapshot of the library, see {@link #updateCatalog()} */
+	private volatile Catalog catalog = Catalog.empty();
+	/** version of the last snapshot, starts from the current time so
+	 * that versions keep increasing after a restart */
+	private long catalogVersion = System.currentTimeMillis();
+
 	protected H2DB(String db) throws SQLException {
-		this.server = Server.createTcpServer("-tcp").start();
-		// printing this URL is useful to connect with the H2 console
-		String publicUrl = server.getURL() + "/" + db;
+		this(db, true);
+	}
+
+	/**
+	 * @param db path to the DB files
+	 * @param embedded true to open the DB in this process, false to
+	 * go through the TCP server, even if it is disabled in configuration
+	 * @throws SQLException
+	 */
+	H2DB(String db, boolean embedded) throws SQLException {
+		String url = "file:" + db;
+		String publicUrl = url;
+		if (Config.isDbTcpEnabled() || !embedded) {
+			this.server = Server.createTcpServer("-tcp").start();
+			// printing this URL is useful to connect with the H2 console
+			publicUrl = server.getURL() + "/" + db;
+			if (!embedded) {
+				url = publicUrl;
+			}
+		}
 
 		this.closed = false;
 
 		try {
 			this.pool = new ComboPooledDataSource();
 			this.pool.setDriverClass(driver);
-			this.pool.setJdbcUrl(protocol + publicUrl);
+			this.pool.setJdbcUrl(protocol + url);
 			this.pool.setUser(Config.getDbUser());
 			this.pool.setPassword(Config.getDbPassword());
+			this.pool.setMinPoolSize(Config.getDbPoolMin());
+			this.pool.setInitialPoolSize(Config.getDbPoolMin());
+			this.pool.setMaxPoolSize(Config.getDbPoolMax());
+			this.pool.setCheckoutTimeout(Config.getDbPoolTimeout());
+			// statements are prepared once per connection
+			this.pool.setMaxStatementsPerConnection(Config.getDbStatements());
 		} catch (Exception e) {
 			throw new SQLException("Failed to create Connection Pool ", e);
 		}
@@ -91,6 +176,10 @@ final class H2DB extends DB {
 		} else if (version == -1L) {
 			Logger.debug("Previous DB not found, will create new one");
 			createNewDb = true;
+		} else if (version >= MIGRATE_FROM && version < SCHEMA_VERSION) {
+			Logger.info("Migrating DB schema from version " + version
+					+ " to " + SCHEMA_VERSION);
+			this.migrate(version);
 		} else if (version != SCHEMA_VERSION) {
 			Logger.debug("DB schema version changed: creating new DB");
 			createNewDb = true;
@@ -107,11 +196,50 @@ final class H2DB extends DB {
 			this.createDB();
 			Logger.info("Created H2 DB: " + publicUrl);
 		}
+
+		this.updateCatalog();
+
+		final long delay = Config.getDbFlushDelay();
+		if (delay > 0) {
+			this.flusher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						try {
+							Thread.sleep(delay);
+						} catch (InterruptedException e) {
+							return;
+						}
+						try {
+							flushDownloadedBytes();
+						} catch (SQLException e) {
+							Logger.error("Failed to update user stats", e);
+						}
+					}
+				}
+			}, "DownloadStats");
+			this.flusher.setDaemon(true);
+			this.flusher.start();
+		}
 	}
 
 	@Override
 	public void close() throws SQLException {
 		Logger.info("closing DB");
+		if (this.flusher != null) {
+			this.flusher.interrupt();
+			try {
+				this.flusher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			flushDownloadedBytes();
+		} catch (SQLException e) {
+			Logger.error("Failed to update user stats", e);
+		}
+
 		try {
 			DataSources.destroy(this.pool);
 		} catch (Exception e) {
@@ -119,8 +247,10 @@ final class H2DB extends DB {
 		}
 
 		this.closed = true;
-		this.server.stop();
-		this.server.shutdown();
+		if (this.server != null) {
+			this.server.stop();
+			this.server.shutdown();
+		}
 	}
 
 	@Override
@@ -128,7 +258,28 @@ final class H2DB extends DB {
 		if (this.closed)
 			throw new SQLException("Connection closed");
 
-		return this.pool.getConnection();
+		long t1 = System.nanoTime();
+		try {
+			return this.pool.getConnection();
+		} finally {
+			checkoutTime.addAndGet(System.nanoTime() - t1);
+			checkouts.incrementAndGet();
+		}
+	}
+
+	@Override
+	public String getPoolStatsAsJSON() throws SQLException {
+		long count = checkouts.get();
+		long time = checkoutTime.get();
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"busy\":" + pool.getNumBusyConnectionsDefaultUser());
+		sb.append(",\"idle\":" + pool.getNumIdleConnectionsDefaultUser());
+		sb.append(",\"waiting\":"
+				+ pool.getNumThreadsAwaitingCheckoutDefaultUser());
+		sb.append(",\"checkouts\":" + count);
+		sb.append(",\"checkoutTime\":"
+				+ (count == 0 ? 0 : time / count / 1000) + "}");
+		return sb.toString();
 	}
 
 	/**
@@ -144,6 +295,7 @@ final class H2DB extends DB {
 			st = conn.createStatement();
 			st.addBatch("DROP TABLE IF EXISTS info");
 			st.addBatch("DROP TABLE IF EXISTS folders");
+			st.addBatch("DROP TABLE IF EXISTS directory");
 			st.addBatch("DROP TABLE IF EXISTS song");
 			st.addBatch("DROP TABLE IF EXISTS album");
 			st.addBatch("DROP TABLE IF EXISTS artist");
@@ -178,6 +330,16 @@ final class H2DB extends DB {
 					"path VARCHAR(254) NOT NULL" + //
 					")");
 
+			// folders walked by the indexer, unlike music folders in 'folders'
+			st.addBatch("CREATE TABLE directory (" + //
+					"path VARCHAR(254) NOT NULL," + //
+					"parent VARCHAR(254)," + //
+					"mtime BIGINT NOT NULL," + //
+					"songs INTEGER NOT NULL," + //
+					"scan_gen BIGINT NOT NULL," + //
+					"CONSTRAINT pk_directory PRIMARY KEY (path)" + //
+					")");
+
 			st.addBatch("CREATE TABLE artist (" + //
 					"artist_id IDENTITY," + //
 					"artist_name VARCHAR(64) NOT NULL," + //
@@ -211,11 +373,15 @@ final class H2DB extends DB {
 					"album_name VARCHAR(254) NOT NULL," + //
 					"artist_name VARCHAR(254) NOT NULL," + //
 					"filepath VARCHAR(254) NOT NULL," + //
-					"hash VARCHAR(32) NOT NULL, " + //
+					"directory VARCHAR(254) NOT NULL," + //
+					"path_hash BIGINT NOT NULL, " + //
 					"position INTEGER," + //
 					"disc_no INTEGER," + //
 					"duration INTEGER," + //
 					"format VARCHAR(254) NOT NULL," + //
+					"file_size BIGINT NOT NULL," + //
+					"file_mtime BIGINT NOT NULL," + //
+					"scan_gen BIGINT NOT NULL," + //
 					"CONSTRAINT pk_song PRIMARY KEY (song_id)," + //
 					"album_id INTEGER NOT NULL," + //
 					"artist_id INTEGER NOT NULL," + //
@@ -255,11 +421,16 @@ final class H2DB extends DB {
 					"CONSTRAINT u_song UNIQUE (song_id, playlist_id)" + //
 					")");
 
-			// song(hash) is used very frequently by the indexer to check if a file is already present in DB
+			// song(path_hash) is used very frequently by the indexer to check if a file is already present in DB
 			// adding this index increases performances tenfold
-			st.addBatch("CREATE INDEX idx_song_hash ON song(hash)");
+			st.addBatch("CREATE INDEX idx_song_path_hash ON song(path_hash)");
 
-			st.addBatch("CREATE INDEX idx_song_pos ON playlist_song(position)");
+			// songs of folders that did not change are marked all at once
+			st.addBatch("CREATE INDEX idx_song_dir ON song(directory)");
+
+			// songs of a playlist by position, and song at a given index
+			st.addBatch("CREATE INDEX idx_playlist_pos "
+					+ "ON playlist_song(playlist_id,position)");
 
 			st.addBatch("INSERT INTO info (schema_version) VALUES ("
 					+ SCHEMA_VERSION + ")");
@@ -274,6 +445,166 @@ final class H2DB extends DB {
 		}
 	}
 
+	/**
+	 * Upgrade the schema of an existing DB, one version at a time.
+	 * Each step runs in its own transaction and is recorded in table 'info'
+	 * once committed, so that an interrupted migration resumes where it
+	 * stopped. Note that H2 commits the transaction on each DDL statement.
+	 * 
+	 * @param version current schema version of the DB
+	 * @throws SQLException
+	 */
+	private void migrate(long version) throws SQLException {
+		Connection conn = getConnection();
+		PreparedStatement st = null;
+		conn.setAutoCommit(false);
+
+		try {
+			st = conn.prepareStatement("UPDATE info SET schema_version=?");
+			for (long v = version + 1; v <= SCHEMA_VERSION; v++) {
+				long t1 = System.currentTimeMillis();
+				migrateTo(conn, v);
+				st.setLong(1, v);
+				st.executeUpdate();
+				conn.commit();
+				Logger.info("Migrated DB schema to version " + v + " in "
+						+ (System.currentTimeMillis() - t1) + "ms");
+			}
+		} catch (SQLException t) {
+			conn.rollback();
+			throw t;
+		} finally {
+			conn.setAutoCommit(true);
+			if (st != null)
+				st.close();
+			if (conn != null)
+				conn.close();
+		}
+	}
+
+	/**
+	 * Migrate the DB schema from the previous version
+	 * 
+	 * @param conn connection in a transaction
+	 * @param version schema version to migrate to
+	 * @throws SQLException
+	 */
+	private static void migrateTo(Connection conn, long version)
+			throws SQLException {
+		Statement st = conn.createStatement();
+		PreparedStatement update = null;
+
+		try {
+			if (version == 12L) {
+				// size and mtime of indexed files, read from the file system
+				// so that the next scan does not read the tags of all songs
+				// again, 0 if the file cannot be found
+				st.execute("ALTER TABLE song ADD COLUMN file_size BIGINT "
+						+ "DEFAULT 0 NOT NULL");
+				st.execute("ALTER TABLE song ADD COLUMN file_mtime BIGINT "
+						+ "DEFAULT 0 NOT NULL");
+				update = conn.prepareStatement("UPDATE song SET file_size=?,"
+						+ "file_mtime=? WHERE song_id=?");
+				ResultSet rs = st.executeQuery("SELECT song_id,filepath "
+						+ "FROM song");
+				int count = 0;
+				while (rs.next()) {
+					BasicFileAttributes attrs;
+					try {
+						attrs = Files.readAttributes(
+								Paths.get(rs.getString("filepath")),
+								BasicFileAttributes.class);
+					} catch (IOException e) {
+						continue;
+					} catch (InvalidPathException e) {
+						continue;
+					}
+					update.setLong(1, attrs.size());
+					update.setLong(2, attrs.lastModifiedTime().toMillis());
+					update.setInt(3, rs.getInt("song_id"));
+					update.addBatch();
+					if (++count % 1024 == 0) {
+						update.executeBatch();
+					}
+				}
+				update.executeBatch();
+			} else if (version == 13L) {
+				// generation of the last scan that found each song
+				st.execute("ALTER TABLE song ADD COLUMN scan_gen BIGINT "
+						+ "DEFAULT 0 NOT NULL");
+			} else if (version == 14L) {
+				// folders walked by the indexer, songs by folder
+				st.execute("CREATE TABLE directory (" + //
+						"path VARCHAR(254) NOT NULL," + //
+						"parent VARCHAR(254)," + //
+						"mtime BIGINT NOT NULL," + //
+						"songs INTEGER NOT NULL," + //
+						"scan_gen BIGINT NOT NULL," + //
+						"CONSTRAINT pk_directory PRIMARY KEY (path)" + //
+						")");
+				st.execute("ALTER TABLE song ADD COLUMN directory "
+						+ "VARCHAR(254)");
+				update = conn.prepareStatement("UPDATE song SET directory=? "
+						+ "WHERE song_id=?");
+				ResultSet rs = st.executeQuery("SELECT song_id,filepath "
+						+ "FROM song");
+				int count = 0;
+				while (rs.next()) {
+					update.setString(1, new File(rs.getString("filepath"))
+							.getParent());
+					update.setInt(2, rs.getInt("song_id"));
+					update.addBatch();
+					if (++count % 1024 == 0) {
+						update.executeBatch();
+					}
+				}
+				update.executeBatch();
+				st.execute("ALTER TABLE song ALTER COLUMN directory "
+						+ "SET NOT NULL");
+				st.execute("CREATE INDEX idx_song_dir ON song(directory)");
+			} else if (version == 15L) {
+				// 64 bits path hash instead of an MD5 string
+				st.execute("ALTER TABLE song ADD COLUMN path_hash BIGINT");
+				update = conn.prepareStatement("UPDATE song SET path_hash=? "
+						+ "WHERE song_id=?");
+				ResultSet rs = st.executeQuery("SELECT song_id,filepath "
+						+ "FROM song");
+				int count = 0;
+				while (rs.next()) {
+					update.setLong(1,
+							Library.hashPath(rs.getString("filepath")));
+					update.setInt(2, rs.getInt("song_id"));
+					update.addBatch();
+					if (++count % 1024 == 0) {
+						update.executeBatch();
+					}
+				}
+				update.executeBatch();
+				st.execute("ALTER TABLE song ALTER COLUMN path_hash "
+						+ "SET NOT NULL");
+				st.execute("DROP INDEX IF EXISTS idx_song_hash");
+				st.execute("ALTER TABLE song DROP COLUMN hash");
+				st.execute("CREATE INDEX idx_song_path_hash "
+						+ "ON song(path_hash)");
+			} else if (version == 16L) {
+				// gaps between playlist positions
+				st.execute("UPDATE playlist_song SET position=position*"
+						+ POSITION_GAP);
+				st.execute("DROP INDEX IF EXISTS idx_song_pos");
+				st.execute("CREATE INDEX idx_playlist_pos "
+						+ "ON playlist_song(playlist_id,position)");
+			} else {
+				throw new SQLException("No migration to DB schema version "
+						+ version);
+			}
+		} finally {
+			if (update != null)
+				update.close();
+			if (st != null)
+				st.close();
+		}
+	}
+
 	/**
 	 * @return Schema Version as stored in DB, or -1 if no record found
 	 * @throws SQLException
@@ -301,24 +632,128 @@ final class H2DB extends DB {
 
 	@Override
 	public void addSong(Song s) throws SQLException {
-		// get artist_id or insert
-		Integer artist_id = getArtistId(s.artist);
-		if (artist_id == null) {
-			artist_id = insertArtist(s.artist);
+		addSongs(Collections.singletonList(s));
+	}
+
+	@Override
+	public void addSongs(List<Song> songs) throws SQLException {
+		if (songs.isEmpty()) {
+			return;
 		}
+		Connection conn = getConnection();
+		PreparedStatement st = null;
+		PreparedStatement insert = null;
+		PreparedStatement update = null;
+		conn.setAutoCommit(false);
+
+		try {
+			// songs already in DB, ie. files that changed since last indexed
+			long[] hashes = new long[songs.size()];
+			for (int i = 0; i < hashes.length; i++) {
+				hashes[i] = songs.get(i).hash;
+			}
+			Map<Long, Integer> songIds = new HashMap<Long, Integer>();
+			for (long[] chunk : chunk(hashes)) {
+				st = conn.prepareStatement(inList("SELECT song_id,path_hash,"
+						+ "album_id,artist_id FROM song "
+						+ "WHERE path_hash IN (%s)", chunk));
+				setIds(st, 1, chunk);
+				ResultSet rs = st.executeQuery();
+				while (rs.next()) {
+					songIds.put(rs.getLong("path_hash"), rs.getInt("song_id"));
+					// updated songs may leave their album
+					dirtyAlbums.add(rs.getInt("album_id"));
+					dirtyArtists.add(rs.getInt("artist_id"));
+				}
+				st.close();
+				st = null;
+			}
+
+			insert = conn.prepareStatement(INSERT_SONG);
+			update = conn.prepareStatement(UPDATE_SONG);
+			for (Song s : songs) {
+				Integer artist_id = artistIdCache.get(s.artist.name);
+				if (artist_id == null) {
+					artist_id = getArtistId(conn, s.artist);
+					if (artist_id == null) {
+						artist_id = insertArtist(conn, s.artist);
+					}
+					artistIdCache.put(s.artist.name, artist_id);
+				}
+
+				String albumKey = artist_id + ":" + s.album.name;
+				Integer album_id = albumIdCache.get(albumKey);
+				if (album_id == null) {
+					album_id = getAlbumId(conn, s.album, artist_id);
+					if (album_id == null) {
+						album_id = insertAlbum(conn, s.album, artist_id);
+					}
+					albumIdCache.put(albumKey, album_id);
+				}
 
-		// get album_id or insert
-		Integer album_id = getAlbumId(s.album, artist_id);
-		if (album_id == null) {
-			album_id = insertAlbum(s.album, artist_id);
+				dirtyAlbums.add(album_id);
+				dirtyArtists.add(artist_id);
+
+				Integer song_id = songIds.get(s.hash);
+				if (song_id == null) {
+					setInsertSong(insert, s, album_id, artist_id);
+					insert.addBatch();
+				} else {
+					setUpdateSong(update, s, song_id, album_id, artist_id);
+					update.addBatch();
+				}
+			}
+			insert.executeBatch();
+			update.executeBatch();
+			conn.commit();
+		} catch (SQLException t) {
+			conn.rollback();
+			// artists and albums inserted by this batch are gone
+			clearIdCache();
+			throw t;
+		} finally {
+			conn.setAutoCommit(true);
+			if (st != null)
+				st.close();
+			if (insert != null)
+				insert.close();
+			if (update != null)
+				update.close();
+			if (conn != null)
+				conn.close();
 		}
+	}
 
-		// get songId or insert
-		Integer song_id = getSongId(s, album_id);
-		if (song_id == null) {
-			insertSong(s, album_id, artist_id);
-		} else {
-			Logger.debug("Song already present: " + s.filepath);
+	/**
+	 * Forget cached artist and album ids, must be called
+	 * whenever artists or albums are removed or renamed
+	 */
+	private void clearIdCache() {
+		artistIdCache.clear();
+		albumIdCache.clear();
+	}
+
+	@Override
+	public void getSongManifest(LongSet files, LongSet states)
+			throws SQLException {
+		Connection conn = getConnection();
+		PreparedStatement st = null;
+
+		try {
+			st = conn.prepareStatement("SELECT path_hash,file_size,"
+					+ "file_mtime FROM song");
+			ResultSet rs = st.executeQuery();
+			while (rs.next()) {
+				long hash = rs.getLong(1);
+				files.add(hash);
+				states.add(Library.hashState(hash, rs.getLong(2),
+						rs.getLong(3)));
+			}
+		} finally {
+			if (st != null)
+				st.close();
+			if (conn != null)
+				conn.close();
 		}
 	}
 
@@ -420,7 +855,7 @@ final class H2DB extends DB {
 				ret.auth = rs.getInt("auth");
 				ret.sha1 = rs.getBytes("hash");
 				ret.salt = rs.getBytes("salt");
-				ret.downloaded = rs.getLong("downloaded");
+				ret.downloaded = rs.getLong("downloaded") + pendingBytes(uid);
 			}
 
 		} finally {
@@ -446,7 +881,7 @@ final class H2DB extends DB {
 				u.id = rs.getInt("user_id");
 				u.username = rs.getString("user_name");
 				u.auth = rs.getInt("auth");
-				u.downloaded = rs.getLong("downloaded");
+				u.downloaded = rs.getLong("downloaded") + pendingBytes(u.id);
 				ret.add(u);
 			}
 
@@ -486,6 +921,7 @@ final class H2DB extends DB {
 	public void removeUser(int uid) throws SQLException {
 		Connection conn = getConnection();
 		PreparedStatement st = null;
+		downloads.remove(uid);
 		try {
 			st = conn.prepareStatement("DELETE FROM user WHERE user_id=?");
 			st.setInt(1, uid);
@@ -499,87 +935,270 @@ final class H2DB extends DB {
 	}
 
 	@Override
-	public void updateSongCount() throws SQLException {
+	public boolean updateSongCount() throws SQLException {
+		boolean all = allDirty;
+		allDirty = false;
+		List<Integer> albums = takeAll(dirtyAlbums);
+		List<Integer> artists = takeAll(dirtyArtists);
+		if (!all && albums.isEmpty() && artists.isEmpty()) {
+			return false;
+		}
+
 		Connection conn = getConnection();
 		PreparedStatement st = null;
+		conn.setAutoCommit(false);
 
 		try {
-			// get all album ids
-			st = conn.prepareStatement("SELECT album_id FROM album");
-			ResultSet rs = st.executeQuery();
-			List<Integer> albumIds = new ArrayList<Integer>();
-			while (rs.next()) {
-				albumIds.add(rs.getInt("album_id"));
-			}
-			// for each album...
-			for (int albumId : albumIds) {
-				List<Song> songs = getSongs(albumId);
-				int playtime = 0;
-				int songCount = songs.size();
-				for (Song s : songs) {
-					playtime += s.duration;
-				}
+			// albums first, artist counters are sums of album counters
+			st = prepareForIds(conn, "MERGE INTO album(album_id,songs,playtime) "
+					+ "KEY(album_id) SELECT album_id,count(*),"
+					+ "COALESCE(sum(duration),0) "
+					+ "FROM song WHERE %s GROUP BY album_id", //
+					"album_id", albums, all);
+			st.executeUpdate();
+			st.close();
 
-				if (songCount == 0) {
-					// remove album
-					st = conn.prepareStatement("DELETE FROM album "
-							+ "WHERE album_id=?");
-					st.setInt(1, albumId);
-					st.executeUpdate();
-				} else {
-					// update album
-					st = conn.prepareStatement("UPDATE album " //
-							+ "SET songs=?,playtime=? " //
-							+ "WHERE album_id=?");
-					st.setInt(1, songCount);
-					st.setInt(2, playtime);
-					st.setInt(3, albumId);
-					st.executeUpdate();
-				}
-			}
+			st = prepareForIds(conn, "DELETE FROM album WHERE %s AND "
+					+ "NOT EXISTS (SELECT song_id FROM song "
+					+ "WHERE song.album_id=album.album_id)", //
+					"album_id", albums, all);
+			st.executeUpdate();
+			st.close();
 
-			// get all artist ids
-			st = conn.prepareStatement("SELECT artist_id FROM artist");
-			rs = st.executeQuery();
-			List<Integer> artistIds = new ArrayList<Integer>();
-			while (rs.next()) {
-				artistIds.add(rs.getInt("artist_id"));
-			}
-			// for each artist...
-			for (int artistId : artistIds) {
-				List<Album> albums = getAlbums(artistId);
-				int playtime = 0;
-				int albumCount = albums.size();
-				int songCount = 0;
-				for (Album a : albums) {
-					playtime += a.playtime;
-					songCount += a.songs;
-				}
+			st = prepareForIds(conn, "MERGE INTO artist(artist_id,songs,"
+					+ "playtime,albums) KEY(artist_id) SELECT artist_id,"
+					+ "sum(songs),sum(playtime),count(*) FROM album "
+					+ "WHERE %s GROUP BY artist_id", //
+					"artist_id", artists, all);
+			st.executeUpdate();
+			st.close();
 
-				if (songCount == 0) {
-					// remove artist
-					st = conn.prepareStatement("DELETE FROM artist "
-							+ "WHERE artist_id=?");
-					st.setInt(1, artistId);
-					st.executeUpdate();
-				} else {
-					// update album
-					st = conn.prepareStatement("UPDATE artist " //
-							+ "SET songs=?,playtime=?,albums=?" //
-							+ "WHERE artist_id=?");
-					st.setInt(1, songCount);
-					st.setInt(2, playtime);
-					st.setInt(3, albumCount);
-					st.setInt(4, artistId);
-					st.executeUpdate();
-				}
-			}
+			st = prepareForIds(conn, "DELETE FROM artist WHERE %s AND "
+					+ "NOT EXISTS (SELECT album_id FROM album "
+					+ "WHERE album.artist_id=artist.artist_id)", //
+					"artist_id", artists, all);
+			st.executeUpdate();
+			conn.commit();
+		} catch (SQLException t) {
+			conn.rollback();
+			allDirty = true;
+			throw t;
 		} finally {
+			// empty albums and artists have been removed
+			clearIdCache();
+			conn.setAutoCommit(true);
 			if (st != null)
 				st.close();
 			if (conn != null)
 				conn.close();
 		}
+		return true;
+	}
+
+	/**
+	 * Remove and return all elements of a concurrently modified set
+	 */
+	private static List<Integer> takeAll(Set<Integer> set) {
+		List<Integer> ret = new ArrayList<Integer>();
+		Iterator<Integer> it = set.iterator();
+		while (it.hasNext()) {
+			ret.add(it.next());
+			it.remove();
+		}
+		return ret;
+	}
+
+	/**
+	 * Restrict a statement to some ids,
+	 * or to the whole table if there are too many of them
+	 * @param sql statement with a %s placeholder for the condition on ids
+	 * @param column name of the id column
+	 * @param ids ids of the rows to update
+	 * @param all true to update all rows
+	 */
+	private static PreparedStatement prepareForIds(Connection conn,
+			String sql, String column, List<Integer> ids, boolean all)
+			throws SQLException {
+		if (all || ids.size() > MAX_DIRTY) {
+			return conn.prepareStatement(String.format(sql, "TRUE"));
+		}
+		if (ids.isEmpty()) {
+			return conn.prepareStatement(String.format(sql, "FALSE"));
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(column).append(" IN (");
+		for (int i = 0; i < ids.size(); i++) {
+			sb.append(i == 0 ? "?" : ",?");
+		}
+		sb.append(")");
+		PreparedStatement st = conn.prepareStatement(String.format(sql,
+				sb.toString()));
+		for (int i = 0; i < ids.size(); i++) {
+			st.setInt(i + 1, ids.get(i));
+		}
+		return st;
+	}
+
+	/**
+	 * Split ids in chunks of at most {@link #MAX_IDS}, to be bound to a
+	 * statement prepared with {@link #inList(String, int[])}.
+	 * Each chunk is padded to a power of two by repeating its last id:
+	 * statements then only come in a few sizes, which are kept in the
+	 * statement cache with their query plan instead of being prepared
+	 * again for each new number of ids
+	 * @param ids any number of ids, duplicates are dropped
+	 * @return chunks of distinct ids, in the order of the ids
+	 */
+	static int[][] chunk(int[] ids) {
+		int[] distinct = new int[ids.length];
+		int count = 0;
+		Set<Integer> seen = new HashSet<Integer>();
+		for (int id : ids) {
+			if (seen.add(id)) {
+				distinct[count++] = id;
+			}
+		}
+
+		int[][] ret = new int[(count + MAX_IDS - 1) / MAX_IDS][];
+		for (int i = 0; i < ret.length; i++) {
+			int from = i * MAX_IDS;
+			int length = Math.min(MAX_IDS, count - from);
+			int size = paddedSize(length);
+			int[] chunk = Arrays.copyOfRange(distinct, from, from + size);
+			Arrays.fill(chunk, length, size, distinct[from + length - 1]);
+			ret[i] = chunk;
+		}
+		return ret;
+	}
+
+	/**
+	 * Same as {@link #chunk(int[])}, for long values such as path hashes
+	 * @param ids any number of ids, duplicates are dropped
+	 * @return chunks of distinct ids, in the order of the ids
+	 */
+	static long[][] chunk(long[] ids) {
+		long[] distinct = new long[ids.length];
+		int count = 0;
+		Set<Long> seen = new HashSet<Long>();
+		for (long id : ids) {
+			if (seen.add(id)) {
+				distinct[count++] = id;
+			}
+		}
+
+		long[][] ret = new long[(count + MAX_IDS - 1) / MAX_IDS][];
+		for (int i = 0; i < ret.length; i++) {
+			int from = i * MAX_IDS;
+			int length = Math.min(MAX_IDS, count - from);
+			int size = paddedSize(length);
+			long[] chunk = Arrays.copyOfRange(distinct, from, from + size);
+			Arrays.fill(chunk, length, size, distinct[from + length - 1]);
+			ret[i] = chunk;
+		}
+		return ret;
+	}
+
+	/**
+	 * @return smallest power of two not lower than length
+	 */
+	private static int paddedSize(int length) {
+		int size = Integer.highestOneBit(length);
+		return (size < length ? size << 1 : size);
+	}
+
+	/**
+	 * @param sql statement with a %s placeholder for a list of ids
+	 * @param chunk ids returned by {@link #chunk(int[])}
+	 * @return statement with one parameter per id of the chunk
+	 */
+	private static String inList(String sql, int[] chunk) {
+		return inList(sql, chunk.length);
+	}
+
+	/**
+	 * @param sql statement with a %s placeholder for a list of ids
+	 * @param chunk ids returned by {@link #chunk(long[])}
+	 * @return statement with one parameter per id of the chunk
+	 */
+	private static String inList(String sql, long[] chunk) {
+		return inList(sql, chunk.length);
+	}
+
+	private static String inList(String sql, int length) {
+		StringBuilder sb = new StringBuilder(length * 2);
+		for (int i = 0; i < length; i++) {
+			sb.append(i == 0 ? "?" : ",?");
+		}
+		return String.format(sql, sb.toString());
+	}
+
+	/**
+	 * @param st statement prepared with {@link #inList(String, int[])}
+	 * @param index index of the first id parameter
+	 * @param chunk ids returned by {@link #chunk(int[])}
+	 */
+	private static void setIds(PreparedStatement st, int index, int[] chunk)
+			throws SQLException {
+		for (int i = 0; i < chunk.length; i++) {
+			st.setInt(index + i, chunk[i]);
+		}
+	}
+
+	/**
+	 * @param st statement prepared with {@link #inList(String, long[])}
+	 * @param index index of the first id parameter
+	 * @param chunk ids returned by {@link #chunk(long[])}
+	 */
+	private static void setIds(PreparedStatement st, int index, long[] chunk)
+			throws SQLException {
+		for (int i = 0; i < chunk.length; i++) {
+			st.setLong(index + i, chunk[i]);
+		}
+	}
+
+	/**
+	 * Run an update on rows selected by id, one chunk of ids at a time
+	 * @param conn connection, not closed
+	 * @param sql statement with a %s placeholder for a list of ids,
+	 *            after all its other parameters
+	 * @param ids ids of the rows to update
+	 * @param values other parameters of the statement, in order
+	 * @return number of updated rows
+	 */
+	private static int updateIds(Connection conn, String sql, int[] ids,
+			Object... values) throws SQLException {
+		int ret = 0;
+		for (int[] chunk : chunk(ids)) {
+			PreparedStatement st = conn.prepareStatement(inList(sql, chunk));
+			try {
+				for (int i = 0; i < values.length; i++) {
+					st.setObject(i + 1, values[i]);
+				}
+				setIds(st, values.length + 1, chunk);
+				ret += st.executeUpdate();
+			} finally {
+				st.close();
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Remember albums and artists returned by the query, so that
+	 * the next {@link #updateSongCount()} recomputes them
+	 * @param st query returning album_id and artist_id columns, closed
+	 */
+	private void markDirty(PreparedStatement st) throws SQLException {
+		try {
+			ResultSet rs = st.executeQuery();
+			while (rs.next()) {
+				dirtyAlbums.add(rs.getInt("album_id"));
+				dirtyArtists.add(rs.getInt("artist_id"));
+			}
+		} finally {
+			st.close();
+		}
 	}
 
 	@Override
@@ -641,53 +1260,69 @@ final class H2DB extends DB {
 		int inserted = 0;
 
 		try {
-			// existing songs: find out number and filter duplicates
-			st = conn.prepareStatement("SELECT song_id FROM playlist_song "
-					+ "WHERE playlist_id=?");
+			// requested songs: duration, and whether already in playlist
+			Map<Integer, Integer> durations = new HashMap<Integer, Integer>();
+			for (int[] chunk : chunk(song_ids)) {
+				st = conn.prepareStatement(inList("SELECT song.song_id,"
+						+ "song.duration,playlist_song.song_id IS NOT NULL "
+						+ "AS present FROM song LEFT JOIN playlist_song "
+						+ "ON playlist_song.song_id=song.song_id "
+						+ "AND playlist_song.playlist_id=? "
+						+ "WHERE song.song_id IN (%s)", chunk));
+				st.setInt(1, playlist_id);
+				setIds(st, 2, chunk);
+				ResultSet rs = st.executeQuery();
+				while (rs.next()) {
+					if (!rs.getBoolean("present")) {
+						durations.put(rs.getInt("song_id"),
+								rs.getInt("duration"));
+					}
+				}
+				st.close();
+			}
+
+			st = conn.prepareStatement("SELECT max(position) "
+					+ "FROM playlist_song WHERE playlist_id=?");
 			st.setInt(1, playlist_id);
 			ResultSet rs = st.executeQuery();
+			long last = -POSITION_GAP;
+			if (rs.next() && rs.getObject(1) != null) {
+				last = rs.getInt(1);
+			}
+			st.close();
 
-			int count = 0;
-			HashSet<Integer> hs = new HashSet<Integer>();
-			while (rs.next()) {
-				hs.add(rs.getInt("song_id"));
-				count++;
+			if (last + (long) song_ids.length * POSITION_GAP > Integer.MAX_VALUE) {
+				last = renumberPlaylist(conn, playlist_id,
+						new ArrayList<Integer>(), 0);
 			}
 
-			// insert songs at the end of the playlist
+			// insert new songs at the end of the playlist
+			long playtime = 0;
 			st = conn.prepareStatement("INSERT INTO playlist_song"
 					+ "(song_id,playlist_id,position) VALUES (?,?,?)");
 			for (int id : song_ids) {
-				if (hs.contains(id))
+				// skips duplicates and unknown songs
+				Integer duration = durations.remove(id);
+				if (duration == null)
 					continue;
 
+				last += POSITION_GAP;
 				st.setInt(1, id);
 				st.setInt(2, playlist_id);
-				st.setInt(3, count);
-				count++;
+				st.setInt(3, (int) last);
+				playtime += duration;
 				inserted++;
 				st.addBatch();
 			}
 			st.executeBatch();
+			st.close();
 
-			// find out playtime
-			int playtime = 0;
-			st = conn.prepareStatement("SELECT sum(song.duration) "
-					+ "FROM song JOIN playlist_song "
-					+ "ON song.song_id=playlist_song.song_id "
-					+ "WHERE playlist_id=?");
-			st.setInt(1, playlist_id);
-			rs = st.executeQuery();
-			if (rs.next()) {
-				playtime = rs.getInt(1);
-			}
-
-			// update playtime and songcount
+			// add inserted songs to counters
 			st = conn.prepareStatement("UPDATE playlist "
-					+ "SET songs=songs+?, playtime=? "
+					+ "SET songs=songs+?, playtime=playtime+? "
 					+ "WHERE playlist.playlist_id=?");
-			st.setInt(1, song_ids.length);
-			st.setInt(2, playtime);
+			st.setInt(1, inserted);
+			st.setLong(2, playtime);
 			st.setInt(3, playlist_id);
 			st.executeUpdate();
 
@@ -711,41 +1346,58 @@ final class H2DB extends DB {
 
 		Connection conn = getConnection();
 		PreparedStatement st = null;
-		int[] ret = new int[0];
 
 		try {
-			String ids = "";
-			for (int i = 0; i < album_ids.length; i++) {
-				ids += '?';
-				if (i < album_ids.length - 1)
-					ids += ',';
-			}
-			st = conn.prepareStatement("SELECT song_id FROM song "
-					+ "JOIN album ON song.album_id=album.album_id "
-					+ " WHERE song.album_id IN (" + ids
-					+ ") ORDER BY date,album.album_id,disc_no,position");
-			for (int i = 0; i < album_ids.length; i++) {
-				st.setInt(i + 1, album_ids[i]);
-			}
-			ResultSet rs = st.executeQuery();
+			// rows of all chunks are sorted together
+			final List<Object[]> rows = new ArrayList<Object[]>();
+			for (int[] chunk : chunk(album_ids)) {
+				st = conn.prepareStatement(inList("SELECT song_id,date,"
+						+ "album.album_id,disc_no,position FROM song "
+						+ "JOIN album ON song.album_id=album.album_id "
+						+ "WHERE song.album_id IN (%s)", chunk));
+				setIds(st, 1, chunk);
+				ResultSet rs = st.executeQuery();
+				while (rs.next()) {
+					rows.add(new Object[] { rs.getInt(1), rs.getString(2),
+							rs.getInt(3), rs.getInt(4), rs.getInt(5) });
+				}
+				st.close();
+				st = null;
+			}
+
+			// ORDER BY date,album.album_id,disc_no,position
+			Collections.sort(rows, new Comparator<Object[]>() {
+				@Override
+				public int compare(Object[] r1, Object[] r2) {
+					String d1 = (String) r1[1], d2 = (String) r2[1];
+					if (d1 == null || d2 == null) {
+						if (d1 != d2) {
+							return (d1 == null ? -1 : 1);
+						}
+					} else if (!d1.equals(d2)) {
+						return d1.compareTo(d2);
+					}
+					for (int i = 2; i < 5; i++) {
+						int c = ((Integer) r1[i]).compareTo((Integer) r2[i]);
+						if (c != 0) {
+							return c;
+						}
+					}
+					return 0;
+				}
+			});
 
-			ArrayList<Integer> song_ids = new ArrayList<Integer>();
-			while (rs.next()) {
-				song_ids.add(rs.getInt("song_id"));
-			}
-			int[] arr = new int[song_ids.size()];
-			for (int i = 0; i < arr.length; i++) {
-				arr[i] = song_ids.get(i);
+			int[] ret = new int[rows.size()];
+			for (int i = 0; i < ret.length; i++) {
+				ret[i] = (Integer) rows.get(i)[0];
 			}
-			ret = arr;
-
+			return ret;
 		} finally {
 			if (st != null)
 				st.close();
 			if (conn != null)
 				conn.close();
 		}
-		return ret;
 	}
 
 	@Override
@@ -759,38 +1411,38 @@ final class H2DB extends DB {
 		conn.setAutoCommit(false);
 		int ret = 0;
 		try {
-			String ids = "";
-			for (int i = 0; i < song_ids.length; i++) {
-				ids += '?';
-				if (i < song_ids.length - 1)
-					ids += ',';
-			}
-			// remove songs
-			st = conn.prepareStatement("DELETE FROM playlist_song "
-					+ "WHERE song_id IN (" + ids + ")");
-			for (int i = 0; i < song_ids.length; i++) {
-				st.setInt(i + 1, song_ids[i]);
-			}
-			ret = st.executeUpdate();
+			long playtime = 0;
+			for (int[] chunk : chunk(song_ids)) {
+				// playtime of the songs actually in the playlist
+				st = conn.prepareStatement(inList("SELECT "
+						+ "COALESCE(sum(song.duration),0) "
+						+ "FROM song JOIN playlist_song "
+						+ "ON song.song_id=playlist_song.song_id "
+						+ "WHERE playlist_id=? "
+						+ "AND playlist_song.song_id IN (%s)", chunk));
+				st.setInt(1, playlist_id);
+				setIds(st, 2, chunk);
+				ResultSet rs = st.executeQuery();
+				if (rs.next()) {
+					playtime += rs.getLong(1);
+				}
+				st.close();
 
-			// count new playtime
-			int playtime = 0;
-			st = conn.prepareStatement("SELECT sum(song.duration) "
-					+ "FROM song JOIN playlist_song "
-					+ "ON song.song_id=playlist_song.song_id "
-					+ "WHERE playlist_id=?");
-			st.setInt(1, playlist_id);
-			ResultSet rs = st.executeQuery();
-			if (rs.next()) {
-				playtime = rs.getInt(1);
+				// remove songs, the others keep their position
+				st = conn.prepareStatement(inList("DELETE FROM playlist_song "
+						+ "WHERE playlist_id=? AND song_id IN (%s)", chunk));
+				st.setInt(1, playlist_id);
+				setIds(st, 2, chunk);
+				ret += st.executeUpdate();
+				st.close();
 			}
 
-			// update new playtime and songcount
+			// remove deleted songs from counters
 			st = conn.prepareStatement("UPDATE playlist "
-					+ "SET songs=songs-?, playtime=? "
+					+ "SET songs=songs-?, playtime=playtime-? "
 					+ "WHERE playlist.playlist_id=?");
-			st.setInt(1, song_ids.length);
-			st.setInt(2, playtime);
+			st.setInt(1, ret);
+			st.setLong(2, playtime);
 			st.setInt(3, playlist_id);
 			st.executeUpdate();
 			conn.commit();
@@ -804,112 +1456,179 @@ final class H2DB extends DB {
 			if (conn != null)
 				conn.close();
 		}
-		reorganizePlaylistOrder(playlist_id);
 		return ret;
 	}
 
 	@Override
-	public int removeSongs(Set<String> hashesToKeep) throws SQLException {
-		// this method will take a _long_ time 
-		// it should not be called frequently
+	public int moveSongsInPlaylist(int playlist_id, int[] song_ids,
+			int index, int user_id) throws SQLException, NotFoundException,
+			ForbiddenException {
+		this.checkPlaylistUser(playlist_id, user_id);
 
 		Connection conn = getConnection();
 		PreparedStatement st = null;
 		conn.setAutoCommit(false);
-		int ret = 0;
-
 		try {
-			String ids = "";
-			if (hashesToKeep.size() > 0) {
-				for (int i = 0; i < hashesToKeep.size(); i++) {
-					ids += "?,";
+			// songs to move that are in the playlist, in requested order
+			Set<Integer> found = new HashSet<Integer>();
+			for (int[] chunk : chunk(song_ids)) {
+				st = conn.prepareStatement(inList("SELECT song_id "
+						+ "FROM playlist_song WHERE playlist_id=? "
+						+ "AND song_id IN (%s)", chunk));
+				st.setInt(1, playlist_id);
+				setIds(st, 2, chunk);
+				ResultSet rs = st.executeQuery();
+				while (rs.next()) {
+					found.add(rs.getInt(1));
 				}
-				ids = ids.substring(0, ids.length() - 1);
-
-				// find which songs will be removed
-				st = conn.prepareStatement("SELECT song_id FROM song "
-						+ "WHERE hash NOT IN (" + ids + ")");
-			} else {
-				st = conn.prepareStatement("SELECT song_id FROM song");
-			}
-
-			int i = 0;
-			for (String hash : hashesToKeep) {
-				i++;
-				st.setString(i, hash);
+				st.close();
 			}
-			ResultSet rs = st.executeQuery();
-			List<Integer> toRemove = new ArrayList<Integer>();
-			ids = "";
-			while (rs.next()) {
-				ids += "?,";
-				toRemove.add(rs.getInt("song_id"));
+			List<Integer> moved = new ArrayList<Integer>();
+			for (int id : song_ids) {
+				if (found.remove(id)) {
+					moved.add(id);
+				}
 			}
-			if (toRemove.size() == 0) {
+			if (moved.isEmpty()) {
+				conn.commit();
 				return 0;
 			}
-			ret = toRemove.size();
-
-			ids = ids.substring(0, ids.length() - 1);
 
-			// find which playlists are affected
-			st = conn.prepareStatement("SELECT playlist_id FROM playlist_song "
-					+ "WHERE song_id IN (" + ids + ")");
-			for (i = 0; i < toRemove.size(); i++) {
-				st.setInt(i + 1, toRemove.get(i));
-			}
-			rs = st.executeQuery();
-			List<Integer> playlists = new ArrayList<Integer>();
+			// positions of the other songs around the destination index:
+			// the moved songs are skipped, at most all of them come first
+			index = Math.max(index, 0);
+			Set<Integer> skip = new HashSet<Integer>(moved);
+			st = conn.prepareStatement("SELECT song_id,position "
+					+ "FROM playlist_song WHERE playlist_id=? "
+					+ "ORDER BY position LIMIT ?");
+			st.setInt(1, playlist_id);
+			st.setInt(2, (int) Math.min(Integer.MAX_VALUE, (long) index
+					+ moved.size() + 1));
+			ResultSet rs = st.executeQuery();
+			Long before = null, after = null;
+			int others = 0;
 			while (rs.next()) {
-				playlists.add(rs.getInt("playlist_id"));
+				if (skip.contains(rs.getInt(1))) {
+					continue;
+				}
+				if (others++ < index) {
+					// last one is the song before the index,
+					// or the last song when index is past the end
+					before = (long) rs.getInt(2);
+				} else {
+					after = (long) rs.getInt(2);
+					break;
+				}
+			}
+			st.close();
+
+			int n = moved.size();
+			long span = (long) (n + 1) * POSITION_GAP;
+			long lo, hi;
+			if (before == null && after == null) {
+				lo = -POSITION_GAP;
+				hi = lo + span;
+			} else if (before == null) {
+				hi = after;
+				lo = hi - span;
+			} else if (after == null) {
+				lo = before;
+				hi = lo + span;
+			} else {
+				lo = before;
+				hi = after;
 			}
+			long step = (hi - lo) / (n + 1);
 
-			// delete the songs
-			st = conn.prepareStatement("DELETE FROM song WHERE song_id IN ("
-					+ ids + ")");
-			for (i = 0; i < toRemove.size(); i++) {
-				st.setInt(i + 1, toRemove.get(i));
+			if (step == 0 || lo < Integer.MIN_VALUE || hi > Integer.MAX_VALUE) {
+				// no room left between the neighbours
+				renumberPlaylist(conn, playlist_id, moved, index);
+			} else {
+				st = conn.prepareStatement("UPDATE playlist_song "
+						+ "SET position=? WHERE playlist_id=? AND song_id=?");
+				for (int i = 0; i < n; i++) {
+					st.setInt(1, (int) (lo + step * (i + 1)));
+					st.setInt(2, playlist_id);
+					st.setInt(3, moved.get(i));
+					st.addBatch();
+				}
+				st.executeBatch();
 			}
-			st.executeUpdate();
 			conn.commit();
+			return n;
+		} catch (SQLException t) {
+			conn.rollback();
+			throw t;
+		} finally {
+			conn.setAutoCommit(true);
+			if (st != null)
+				st.close();
+			if (conn != null)
+				conn.close();
+		}
+	}
 
-			// update playlists playtime & songcount
-			for (int playlist_id : playlists) {
-				int songNum = 0;
-				st = conn
-						.prepareStatement("SELECT count(*) FROM playlist_song "
-								+ "WHERE playlist_id=?");
-				st.setInt(1, playlist_id);
-				rs = st.executeQuery();
-				if (rs.next()) {
-					songNum = rs.getInt(1);
+	/**
+	 * Rewrite all positions of a playlist with regular gaps,
+	 * when there is no room left to insert songs
+	 * @param conn connection in a transaction
+	 * @param playlist_id unique id of the playlist
+	 * @param moved songs of the playlist to put at index, in that order
+	 * @param index position of the first moved song among the others
+	 * @return last position of the playlist
+	 */
+	private static long renumberPlaylist(Connection conn, int playlist_id,
+			List<Integer> moved, int index) throws SQLException {
+		PreparedStatement st = null;
+		try {
+			st = conn.prepareStatement("SELECT song_id FROM playlist_song "
+					+ "WHERE playlist_id=? ORDER BY position");
+			st.setInt(1, playlist_id);
+			ResultSet rs = st.executeQuery();
+			Set<Integer> isMoved = new HashSet<Integer>(moved);
+			List<Integer> order = new ArrayList<Integer>();
+			while (rs.next()) {
+				int id = rs.getInt(1);
+				if (!isMoved.contains(id)) {
+					order.add(id);
 				}
+			}
+			st.close();
+			order.addAll(Math.min(index, order.size()), moved);
 
-				// find out playtime
-				int playtime = 0;
-				st = conn.prepareStatement("SELECT sum(song.duration) "
-						+ "FROM song JOIN playlist_song "
-						+ "ON song.song_id=playlist_song.song_id "
-						+ "WHERE playlist_id=?");
-				st.setInt(1, playlist_id);
-				rs = st.executeQuery();
-				if (rs.next()) {
-					playtime = rs.getInt(1);
-				}
+			st = conn.prepareStatement("UPDATE playlist_song "
+					+ "SET position=? WHERE playlist_id=? AND song_id=?");
+			for (int i = 0; i < order.size(); i++) {
+				st.setInt(1, i * POSITION_GAP);
+				st.setInt(2, playlist_id);
+				st.setInt(3, order.get(i));
+				st.addBatch();
+			}
+			st.executeBatch();
+			return (long) (order.size() - 1) * POSITION_GAP;
+		} finally {
+			if (st != null)
+				st.close();
+		}
+	}
 
-				// update playtime and songcount
-				st = conn.prepareStatement("UPDATE playlist "
-						+ "SET songs=?, playtime=? "
-						+ "WHERE playlist.playlist_id=?");
-				st.setInt(1, songNum);
-				st.setInt(2, playtime);
-				st.setInt(3, playlist_id);
-				st.executeUpdate();
-				conn.commit();
+	@Override
+	public void markSongs(long[] hashes, long generation)
+			throws SQLException {
+		Connection conn = getConnection();
+		PreparedStatement st = null;
+		conn.setAutoCommit(false);
 
-				// update playlists order
-				reorganizePlaylistOrder(playlist_id);
+		try {
+			st = conn.prepareStatement("UPDATE song SET scan_gen=? "
+					+ "WHERE path_hash=?");
+			for (long hash : hashes) {
+				st.setLong(1, generation);
+				st.setLong(2, hash);
+				st.addBatch();
 			}
+			st.executeBatch();
+			conn.commit();
 		} catch (SQLException t) {
 			conn.rollback();
 			throw t;
@@ -920,30 +1639,22 @@ final class H2DB extends DB {
 			if (conn != null)
 				conn.close();
 		}
-		return ret;
 	}
 
-	private void reorganizePlaylistOrder(int playlist_id) throws SQLException {
+	@Override
+	public void markSongsInDirectories(List<String> paths, long generation)
+			throws SQLException {
 		Connection conn = getConnection();
 		PreparedStatement st = null;
 		conn.setAutoCommit(false);
 
 		try {
-			st = conn.prepareStatement("SELECT * FROM playlist_song "
-					+ "WHERE playlist_id=? ORDER BY position");
-			st.setInt(1, playlist_id);
-			ResultSet rs = st.executeQuery();
-
-			st = conn.prepareStatement("UPDATE playlist_song "
-					+ "SET position=? WHERE playlist_id=? AND song_id=?");
-
-			int pos = 0;
-			while (rs.next()) {
-				st.setInt(1, pos);
-				st.setInt(2, playlist_id);
-				st.setInt(3, rs.getInt("song_id"));
+			st = conn.prepareStatement("UPDATE song SET scan_gen=? "
+					+ "WHERE directory=?");
+			for (String path : paths) {
+				st.setLong(1, generation);
+				st.setString(2, path);
 				st.addBatch();
-				pos++;
 			}
 			st.executeBatch();
 			conn.commit();
@@ -960,31 +1671,76 @@ final class H2DB extends DB {
 	}
 
 	@Override
-	public int removePlaylists(int[] playlist_ids, int user_id)
-			throws SQLException, NotFoundException, ForbiddenException {
-		for (int playlist_id : playlist_ids) {
-			this.checkPlaylistUser(playlist_id, user_id);
+	public int removeSongs(long generation) throws SQLException {
+		Connection conn = getConnection();
+		PreparedStatement st = null;
+		conn.setAutoCommit(false);
+		int ret = 0;
+
+		try {
+			// songs and playtime lost by each playlist
+			st = conn.prepareStatement("SELECT playlist_id,count(*),"
+					+ "COALESCE(sum(song.duration),0) "
+					+ "FROM playlist_song JOIN song "
+					+ "ON song.song_id=playlist_song.song_id "
+					+ "WHERE song.scan_gen<? GROUP BY playlist_id");
+			st.setLong(1, generation);
+			updatePlaylists(conn, st);
+
+			st = conn.prepareStatement("SELECT DISTINCT album_id,artist_id "
+					+ "FROM song WHERE scan_gen<?");
+			st.setLong(1, generation);
+			markDirty(st);
+
+			// playlist entries are removed by cascade
+			st = conn.prepareStatement("DELETE FROM song WHERE scan_gen<?");
+			st.setLong(1, generation);
+			ret = st.executeUpdate();
+			conn.commit();
+		} catch (SQLException t) {
+			conn.rollback();
+			throw t;
+		} finally {
+			conn.setAutoCommit(true);
+			if (st != null)
+				st.close();
+			if (conn != null)
+				conn.close();
 		}
+		return ret;
+	}
 
+	@Override
+	public int removeSongsInPath(String path) throws SQLException {
 		Connection conn = getConnection();
 		PreparedStatement st = null;
-		int ret;
+		conn.setAutoCommit(false);
+		int ret = 0;
+
 		try {
-			String ids = "";
-			for (int i = 0; i < playlist_ids.length; i++) {
-				ids += '?';
-				if (i < playlist_ids.length - 1)
-					ids += ',';
+			String prefix = path + File.separator;
+			prefix = prefix.replace("\\", "\\\\").replace("%", "\\%")
+					.replace("_", "\\_");
+			st = conn.prepareStatement("SELECT song_id FROM song "
+					+ "WHERE filepath=? OR filepath LIKE ? ESCAPE '\\'");
+			st.setString(1, path);
+			st.setString(2, prefix + "%");
+			ResultSet rs = st.executeQuery();
+			List<Integer> toRemove = new ArrayList<Integer>();
+			while (rs.next()) {
+				toRemove.add(rs.getInt("song_id"));
 			}
-
-			st = conn.prepareStatement("DELETE FROM playlist WHERE "
-					+ "playlist_id IN (" + ids + ")");
-			for (int i = 0; i < playlist_ids.length; i++) {
-				st.setInt(i + 1, playlist_ids[i]);
+			if (toRemove.size() == 0) {
+				return 0;
 			}
+			ret = toRemove.size();
 
-			ret = st.executeUpdate();
+			removeSongIds(conn, toRemove);
+		} catch (SQLException t) {
+			conn.rollback();
+			throw t;
 		} finally {
+			conn.setAutoCommit(true);
 			if (st != null)
 				st.close();
 			if (conn != null)
@@ -993,6 +1749,90 @@ final class H2DB extends DB {
 		return ret;
 	}
 
+	/**
+	 * Delete songs and update the playlists that contained them
+	 * @param conn connection with auto-commit disabled
+	 * @param toRemove song ids
+	 */
+	private void removeSongIds(Connection conn, List<Integer> toRemove)
+			throws SQLException {
+		int[] song_ids = new int[toRemove.size()];
+		for (int i = 0; i < song_ids.length; i++) {
+			song_ids[i] = toRemove.get(i);
+		}
+
+		PreparedStatement st = null;
+		for (int[] chunk : chunk(song_ids)) {
+			// songs and playtime lost by each playlist
+			st = conn.prepareStatement(inList("SELECT playlist_id,count(*),"
+					+ "COALESCE(sum(song.duration),0) "
+					+ "FROM playlist_song JOIN song "
+					+ "ON song.song_id=playlist_song.song_id "
+					+ "WHERE song.song_id IN (%s) GROUP BY playlist_id", chunk));
+			setIds(st, 1, chunk);
+			updatePlaylists(conn, st);
+
+			st = conn.prepareStatement(inList("SELECT DISTINCT album_id,"
+					+ "artist_id FROM song WHERE song_id IN (%s)", chunk));
+			setIds(st, 1, chunk);
+			markDirty(st);
+
+			// delete the songs
+			st = conn.prepareStatement(inList("DELETE FROM song "
+					+ "WHERE song_id IN (%s)", chunk));
+			setIds(st, 1, chunk);
+			st.executeUpdate();
+			st.close();
+		}
+		conn.commit();
+	}
+
+	/**
+	 * Subtract removed songs from the counters of their playlists,
+	 * in the transaction that removes them
+	 * @param conn connection with auto-commit disabled
+	 * @param st query returning, for each affected playlist, its id, the
+	 * number of songs it loses and their playtime, closed
+	 */
+	private static void updatePlaylists(Connection conn, PreparedStatement st)
+			throws SQLException {
+		PreparedStatement update = null;
+		try {
+			update = conn.prepareStatement("UPDATE playlist "
+					+ "SET songs=songs-?, playtime=playtime-? "
+					+ "WHERE playlist_id=?");
+			ResultSet rs = st.executeQuery();
+			while (rs.next()) {
+				update.setInt(1, rs.getInt(2));
+				update.setLong(2, rs.getLong(3));
+				update.setInt(3, rs.getInt(1));
+				update.addBatch();
+			}
+			update.executeBatch();
+		} finally {
+			st.close();
+			if (update != null)
+				update.close();
+		}
+	}
+
+	@Override
+	public int removePlaylists(int[] playlist_ids, int user_id)
+			throws SQLException, NotFoundException, ForbiddenException {
+		for (int playlist_id : playlist_ids) {
+			this.checkPlaylistUser(playlist_id, user_id);
+		}
+
+		Connection conn = getConnection();
+		try {
+			return updateIds(conn, "DELETE FROM playlist WHERE "
+					+ "playlist_id IN (%s)", playlist_ids);
+		} finally {
+			if (conn != null)
+				conn.close();
+		}
+	}
+
 	@Override
 	public void clearPlaylist(int playlist_id, int user_id)
 			throws SQLException, NotFoundException, ForbiddenException {
@@ -1120,6 +1960,9 @@ final class H2DB extends DB {
 
 	public Song getPlaylistSong(int playlist_id, int position)
 			throws SQLException {
+		if (position < 0) {
+			return null;
+		}
 		Connection conn = getConnection();
 		PreparedStatement st = null;
 		Song ret = null;
@@ -1128,7 +1971,8 @@ final class H2DB extends DB {
 			st = conn
 					.prepareStatement("SELECT song.* FROM song JOIN playlist_song "
 							+ "ON song.song_id=playlist_song.song_id "
-							+ "WHERE playlist_id=? AND playlist_song.position=?");
+							+ "WHERE playlist_id=? "
+							+ "ORDER BY playlist_song.position LIMIT 1 OFFSET ?");
 			st.setInt(1, playlist_id);
 			st.setInt(2, position);
 			ResultSet rs = st.executeQuery();
@@ -1156,261 +2000,44 @@ final class H2DB extends DB {
 		return ret;
 	}
 
-	@Override
-	public List<Artist> getArtists() throws SQLException {
-		Connection conn = getConnection();
-		PreparedStatement st = null;
-		List<Artist> ret = new ArrayList<Artist>();
-
-		try {
-			st = conn.prepareStatement("SELECT * " //
-					+ "FROM artist ORDER BY lower(artist_name)");
-			ResultSet rs = st.executeQuery();
-
-			while (rs.next()) {
-				Artist a = new Artist();
-				a.id = rs.getInt("artist_id");
-				a.name = rs.getString("artist_name");
-				a.albums = rs.getInt("albums");
-				a.songs = rs.getInt("songs");
-				a.playtime = rs.getInt("playtime");
-				a.date_added = rs.getLong("date_added");
-				ret.add(a);
-			}
-
-		} finally {
-			if (st != null)
-				st.close();
-			if (conn != null)
-				conn.close();
-		}
-		return ret;
-	}
-
-	@Override
-	public List<Artist> getLatestArtists(int number) throws SQLException {
-		Connection conn = getConnection();
-		PreparedStatement st = null;
-		List<Artist> ret = new ArrayList<Artist>();
-
-		try {
-			st = conn.prepareStatement("SELECT * " //
-					+ "FROM artist ORDER BY date_added DESC LIMIT ?");
-			st.setInt(1, number);
-			ResultSet rs = st.executeQuery();
-
-			while (rs.next()) {
-				Artist a = new Artist();
-				a.id = rs.getInt("artist_id");
-				a.name = rs.getString("artist_name");
-				a.albums = rs.getInt("albums");
-				a.songs = rs.getInt("songs");
-				a.date_added = rs.getLong("date_added");
-				a.playtime = rs.getInt("playtime");
-				ret.add(a);
-			}
-
-		} finally {
-			if (st != null)
-				st.close();
-			if (conn != null)
-				conn.close();
-		}
-		return ret;
-	}
-
-	@Override
-	public Artist getArtist(int id) throws SQLException {
-		Connection conn = getConnection();
-		PreparedStatement st = null;
-		Artist ret = new Artist();
-
-		try {
-			st = conn.prepareStatement("SELECT * " + //
-					"FROM artist WHERE artist_id=?");
-			st.setInt(1, id);
-			ResultSet rs = st.executeQuery();
-
-			if (rs.next()) {
-				ret.id = rs.getInt("artist_id");
-				ret.name = rs.getString("artist_name");
-				ret.albums = rs.getInt("albums");
-				ret.songs = rs.getInt("songs");
-				ret.playtime = rs.getInt("playtime");
-				ret.date_added = rs.getLong("date_added");
-			} else {
-				return null;
-			}
-		} finally {
-			if (st != null)
-				st.close();
-			if (conn != null)
-				conn.close();
-		}
-		return ret;
-	}
-
 	@Override
 	public List<String> getArtistSongPaths(int[] artist_id) throws SQLException {
-		Connection conn = getConnection();
-		PreparedStatement st = null;
-		List<String> ret = new ArrayList<String>();
-
-		try {
-			String ids = "";
-			for (int i = 0; i < artist_id.length; i++) {
-				ids += '?';
-				if (i < artist_id.length - 1)
-					ids += ',';
-			}
-			st = conn
-					.prepareStatement("SELECT filepath FROM song WHERE artist_id "
-							+ "IN (" + ids + ")");
-			for (int i = 0; i < artist_id.length; i++) {
-				st.setInt(i + 1, artist_id[i]);
-			}
-			ResultSet rs = st.executeQuery();
-			while (rs.next()) {
-				ret.add(rs.getString("filepath"));
-			}
-		} finally {
-			if (st != null)
-				st.close();
-			if (conn != null)
-				conn.close();
-		}
-		return ret;
+		return getPaths("artist_id", artist_id);
 	}
 
 	@Override
 	public List<String> getAlbumSongPaths(int[] album_id) throws SQLException {
-		Connection conn = getConnection();
-		PreparedStatement st = null;
-		List<String> ret = new ArrayList<String>();
-
-		try {
-			String ids = "";
-			for (int i = 0; i < album_id.length; i++) {
-				ids += '?';
-				if (i < album_id.length - 1)
-					ids += ',';
-			}
-			st = conn
-					.prepareStatement("SELECT filepath FROM song WHERE album_id "
-							+ "IN (" + ids + ")");
-			for (int i = 0; i < album_id.length; i++) {
-				st.setInt(i + 1, album_id[i]);
-			}
-			ResultSet rs = st.executeQuery();
-			while (rs.next()) {
-				ret.add(rs.getString("filepath"));
-			}
-		} finally {
-			if (st != null)
-				st.close();
-			if (conn != null)
-				conn.close();
-		}
-		return ret;
+		return getPaths("album_id", album_id);
 	}
 
 	@Override
 	public List<String> getSongPaths(int[] song_ids) throws SQLException {
-		Connection conn = getConnection();
-		PreparedStatement st = null;
-		List<String> ret = new ArrayList<String>();
-
-		try {
-			String ids = "";
-			for (int i = 0; i < song_ids.length; i++) {
-				ids += '?';
-				if (i < song_ids.length - 1)
-					ids += ',';
-			}
-			st = conn
-					.prepareStatement("SELECT filepath FROM song WHERE song_id "
-							+ "IN (" + ids + ")");
-			for (int i = 0; i < song_ids.length; i++) {
-				st.setInt(i + 1, song_ids[i]);
-			}
-			ResultSet rs = st.executeQuery();
-			while (rs.next()) {
-				ret.add(rs.getString("filepath"));
-			}
-		} finally {
-			if (st != null)
-				st.close();
-			if (conn != null)
-				conn.close();
-		}
-		return ret;
+		return getPaths("song_id", song_ids);
 	}
 
-	@Override
-	public List<Album> getAlbums(int artist_id) throws SQLException {
+	/**
+	 * @param column song column the ids refer to
+	 * @param ids any number of ids
+	 * @return file paths of the matching songs
+	 */
+	private List<String> getPaths(String column, int[] ids)
+			throws SQLException {
 		Connection conn = getConnection();
 		PreparedStatement st = null;
-		List<Album> ret = new ArrayList<Album>();
+		List<String> ret = new ArrayList<String>();
 
 		try {
-			st = conn.prepareStatement("SELECT * " //
-					+ "FROM album WHERE artist_id=? ORDER BY date,album_name");
-			st.setInt(1, artist_id);
-			ResultSet rs = st.executeQuery();
-
-			while (rs.next()) {
-				Album a = new Album();
-				a.id = rs.getInt("album_id");
-				a.artist_id = artist_id;
-				a.name = rs.getString("album_name");
-				a.date = rs.getString("date");
-				a.songs = rs.getInt("songs");
-				a.playtime = rs.getInt("playtime");
-				a.date_added = rs.getLong("date_added");
-				a.artwork_path = rs.getString("artwork_path");
-				a.artwork_id = rs.getString("artwork_id");
-				a.genre = rs.getString("genre");
-				a.artist_name = rs.getString("artist_name");
-				ret.add(a);
-			}
-
-		} finally {
-			if (st != null)
+			for (int[] chunk : chunk(ids)) {
+				st = conn.prepareStatement(inList("SELECT filepath FROM song "
+						+ "WHERE " + column + " IN (%s)", chunk));
+				setIds(st, 1, chunk);
+				ResultSet rs = st.executeQuery();
+				while (rs.next()) {
+					ret.add(rs.getString("filepath"));
+				}
 				st.close();
-			if (conn != null)
-				conn.close();
-		}
-		return ret;
-	}
-
-	@Override
-	public List<Album> getLatestAlbums(int number) throws SQLException {
-		Connection conn = getConnection();
-		PreparedStatement st = null;
-		List<Album> ret = new ArrayList<Album>();
-
-		try {
-			st = conn.prepareStatement("SELECT * " //
-					+ "FROM album ORDER BY date_added DESC LIMIT ?");
-			st.setInt(1, number);
-			ResultSet rs = st.executeQuery();
-
-			while (rs.next()) {
-				Album a = new Album();
-				a.id = rs.getInt("album_id");
-				a.artist_id = rs.getInt("artist_id");
-				a.name = rs.getString("album_name");
-				a.date = rs.getString("date");
-				a.songs = rs.getInt("songs");
-				a.playtime = rs.getInt("playtime");
-				a.date_added = rs.getLong("date_added");
-				a.artwork_path = rs.getString("artwork_path");
-				a.artwork_id = rs.getString("artwork_id");
-				a.genre = rs.getString("genre");
-				a.artist_name = rs.getString("artist_name");
-				ret.add(a);
+				st = null;
 			}
-
 		} finally {
 			if (st != null)
 				st.close();
@@ -1478,70 +2105,6 @@ final class H2DB extends DB {
 		return null;
 	}
 
-	public Map<Integer, Map<Integer, String>> getAlbumArtworks()
-			throws SQLException {
-		Connection conn = getConnection();
-		PreparedStatement st = null;
-		Map<Integer, Map<Integer, String>> ret = new HashMap<Integer, Map<Integer, String>>();
-
-		try {
-			st = conn.prepareStatement("SELECT album_id,artist_id,artwork_id "
-					+ "FROM album WHERE artwork_path != 'null'");
-			ResultSet rs = st.executeQuery();
-			while (rs.next()) {
-				int album = rs.getInt("album_id");
-				int artist = rs.getInt("artist_id");
-				String art_id = rs.getString("artwork_id");
-				Map<Integer, String> li = ret.get(artist);
-				if (li == null) {
-					li = new HashMap<Integer, String>();
-					ret.put(artist, li);
-				}
-				li.put(album, art_id);
-			}
-		} finally {
-			if (st != null)
-				st.close();
-			if (conn != null)
-				conn.close();
-		}
-		return ret;
-	}
-
-	@Override
-	public List<Song> getSongs(int album_id) throws SQLException {
-		Connection conn = getConnection();
-		PreparedStatement st = null;
-		List<Song> ret = new ArrayList<Song>();
-
-		try {
-			st = conn.prepareStatement("SELECT * " //
-					+ "FROM song WHERE album_id=? ORDER BY disc_no,position");
-			st.setInt(1, album_id);
-			ResultSet rs = st.executeQuery();
-
-			while (rs.next()) {
-				Song s = new Song();
-				s.id = rs.getInt("song_id");
-				s.album_id = album_id;
-				s.title = rs.getString("title");
-				s.position = rs.getInt("position");
-				s.disc_no = rs.getInt("disc_no");
-				s.duration = rs.getInt("duration");
-				s.format = rs.getString("format");
-				s.album_name = rs.getString("album_name");
-				s.artist_name = rs.getString("artist_name");
-				ret.add(s);
-			}
-		} finally {
-			if (st != null)
-				st.close();
-			if (conn != null)
-				conn.close();
-		}
-		return ret;
-	}
-
 	@Override
 	public List<Song> getSongs(int[] song_ids) throws SQLException {
 		Connection conn = getConnection();
@@ -1549,33 +2112,29 @@ final class H2DB extends DB {
 		List<Song> ret = new ArrayList<Song>();
 
 		try {
-			String ids = "";
-			for (int i = 0; i < song_ids.length; i++) {
-				ids += '?';
-				if (i < song_ids.length - 1)
-					ids += ',';
-			}
-			st = conn.prepareStatement("SELECT * "
-					+ "FROM song WHERE song_id IN (" + ids + ")");
-			for (int i = 0; i < song_ids.length; i++) {
-				st.setInt(i + 1, song_ids[i]);
-			}
-			ResultSet rs = st.executeQuery();
+			for (int[] chunk : chunk(song_ids)) {
+				st = conn.prepareStatement(inList("SELECT * "
+						+ "FROM song WHERE song_id IN (%s)", chunk));
+				setIds(st, 1, chunk);
+				ResultSet rs = st.executeQuery();
 
-			while (rs.next()) {
-				Song s = new Song();
-				s.id = rs.getInt("song_id");
-				s.album_id = rs.getInt("album_id");
-				s.album_name = rs.getString("album_name");
-				s.artist_id = rs.getInt("artist_id");
-				s.artist_name = rs.getString("artist_name");
-				s.title = rs.getString("title");
-				s.position = rs.getInt("position");
-				s.disc_no = rs.getInt("disc_no");
-				s.duration = rs.getInt("duration");
-				s.format = rs.getString("format");
-				s.filepath = rs.getString("filepath");
-				ret.add(s);
+				while (rs.next()) {
+					Song s = new Song();
+					s.id = rs.getInt("song_id");
+					s.album_id = rs.getInt("album_id");
+					s.album_name = rs.getString("album_name");
+					s.artist_id = rs.getInt("artist_id");
+					s.artist_name = rs.getString("artist_name");
+					s.title = rs.getString("title");
+					s.position = rs.getInt("position");
+					s.disc_no = rs.getInt("disc_no");
+					s.duration = rs.getInt("duration");
+					s.format = rs.getString("format");
+					s.filepath = rs.getString("filepath");
+					ret.add(s);
+				}
+				st.close();
+				st = null;
 			}
 		} finally {
 			if (st != null)
@@ -1597,48 +2156,71 @@ final class H2DB extends DB {
 	}
 
 	@Override
-	public List<Song> getRandomSongs(int number) throws SQLException {
-		Connection conn = getConnection();
-		PreparedStatement st = null;
-		List<Song> ret = new ArrayList<Song>();
-
-		try {
-			st = conn.prepareStatement("SELECT * " //
-					+ "FROM song " + "ORDER BY RAND() LIMIT ?");
-			st.setInt(1, number);
-			ResultSet rs = st.executeQuery();
+	public List<Song> getRandomSongs(int number, String genre,
+			int maxPerArtist) throws SQLException {
+		return catalog.getRandomSongs(number, genre, maxPerArtist,
+				ThreadLocalRandom.current());
+	}
 
-			while (rs.next()) {
-				Song s = new Song();
-				s.id = rs.getInt("song_id");
-				s.album_id = rs.getInt("album_id");
-				s.title = rs.getString("title");
-				s.position = rs.getInt("position");
-				s.disc_no = rs.getInt("disc_no");
-				s.duration = rs.getInt("duration");
-				s.format = rs.getString("format");
-				ret.add(s);
+	@Override
+	public void updateDownloadedBytes(int uid, long bytes) throws SQLException {
+		AtomicLong pending = downloads.get(uid);
+		if (pending == null) {
+			AtomicLong created = new AtomicLong();
+			pending = downloads.putIfAbsent(uid, created);
+			if (pending == null) {
+				pending = created;
 			}
-		} finally {
-			if (st != null)
-				st.close();
-			if (conn != null)
-				conn.close();
 		}
-		return ret;
+		pending.addAndGet(bytes);
+
+		if (this.flusher == null) {
+			flushDownloadedBytes();
+		}
+	}
+
+	/**
+	 * @return bytes downloaded by a user that are not written in DB yet
+	 */
+	private long pendingBytes(int uid) {
+		AtomicLong pending = downloads.get(uid);
+		return (pending == null ? 0 : pending.get());
 	}
 
-	@Override
-	public void updateDownloadedBytes(int uid, long bytes) throws SQLException {
+	/**
+	 * Write the bytes downloaded by each user since the last call,
+	 * a single UPDATE per user whatever the number of streams.
+	 * Bytes that could not be written are kept for the next call.
+	 */
+	private synchronized void flushDownloadedBytes() throws SQLException {
+		List<Map.Entry<Integer, AtomicLong>> pending = new ArrayList<Map.Entry<Integer, AtomicLong>>();
+		List<Long> bytes = new ArrayList<Long>();
+		for (Map.Entry<Integer, AtomicLong> e : downloads.entrySet()) {
+			long b = e.getValue().get();
+			if (b != 0) {
+				pending.add(e);
+				bytes.add(b);
+			}
+		}
+		if (pending.isEmpty()) {
+			return;
+		}
+
 		Connection conn = getConnection();
 		PreparedStatement st = null;
 		try {
-			st = conn
-					.prepareStatement("UPDATE user SET downloaded=downloaded+? "
-							+ "WHERE user_id=?");
-			st.setLong(1, bytes);
-			st.setInt(2, uid);
-			st.executeUpdate();
+			st = conn.prepareStatement("UPDATE user "
+					+ "SET downloaded=downloaded+? WHERE user_id=?");
+			for (int i = 0; i < pending.size(); i++) {
+				st.setLong(1, bytes.get(i));
+				st.setInt(2, pending.get(i).getKey());
+				st.addBatch();
+			}
+			st.executeBatch();
+			// bytes added meanwhile are kept for the next call
+			for (int i = 0; i < pending.size(); i++) {
+				pending.get(i).getValue().addAndGet(-bytes.get(i));
+			}
 		} finally {
 			if (st != null)
 				st.close();
@@ -1677,8 +2259,8 @@ final class H2DB extends DB {
 	 * @return id of the Artist in DB, or null
 	 * @throws SQLException
 	 */
-	private Integer getArtistId(Artist art) throws SQLException {
-		Connection conn = getConnection();
+	private Integer getArtistId(Connection conn, Artist art)
+			throws SQLException {
 		PreparedStatement st = null;
 
 		try {
@@ -1697,8 +2279,6 @@ final class H2DB extends DB {
 		} finally {
 			if (st != null)
 				st.close();
-			if (conn != null)
-				conn.close();
 		}
 	}
 
@@ -1709,6 +2289,14 @@ final class H2DB extends DB {
 	 */
 	private int insertArtist(Artist art) throws SQLException {
 		Connection conn = getConnection();
+		try {
+			return insertArtist(conn, art);
+		} finally {
+			conn.close();
+		}
+	}
+
+	private int insertArtist(Connection conn, Artist art) throws SQLException {
 		PreparedStatement st = null;
 
 		try {
@@ -1729,19 +2317,17 @@ final class H2DB extends DB {
 		} finally {
 			if (st != null)
 				st.close();
-			if (conn != null)
-				conn.close();
 		}
 	}
 
 	/**
 	 * @param alb non null Album
-	 * @param artist_id id of the artist related artist
+	 * @param artist_id id of the album related artist
 	 * @return id of the album that matches both parameters, or null
 	 * @throws SQLException
 	 */
-	private Integer getAlbumId(Album alb, int artist_id) throws SQLException {
-		Connection conn = getConnection();
+	private Integer getAlbumId(Connection conn, Album alb, int artist_id)
+			throws SQLException {
 		PreparedStatement st = null;
 
 		try {
@@ -1760,8 +2346,6 @@ final class H2DB extends DB {
 		} finally {
 			if (st != null)
 				st.close();
-			if (conn != null)
-				conn.close();
 		}
 	}
 
@@ -1773,6 +2357,15 @@ final class H2DB extends DB {
 	 */
 	private int insertAlbum(Album alb, int artistId) throws SQLException {
 		Connection conn = getConnection();
+		try {
+			return insertAlbum(conn, alb, artistId);
+		} finally {
+			conn.close();
+		}
+	}
+
+	private int insertAlbum(Connection conn, Album alb, int artistId)
+			throws SQLException {
 		PreparedStatement st = null;
 
 		try {
@@ -1803,106 +2396,55 @@ final class H2DB extends DB {
 		} finally {
 			if (st != null)
 				st.close();
-			if (conn != null)
-				conn.close();
-		}
-	}
-
-	/**
-	 * 
-	 * @param song a non null Song
-	 * @param album_id id of the Album containing this song
-	 * @return id of the Song matching both parameters, or null
-	 * @throws SQLException
-	 */
-	private Integer getSongId(Song song, int album_id) throws SQLException {
-		Connection conn = getConnection();
-		PreparedStatement st = null;
-
-		try {
-			st = conn.prepareStatement("SELECT song_id FROM song where hash=?");
-			st.setString(1, song.hash);
-			ResultSet rs = st.executeQuery();
-			if (rs.next()) {
-				int id = rs.getInt("song_id");
-				return id;
-			} else {
-				return null;
-			}
-
-		} finally {
-			if (st != null)
-				st.close();
-			if (conn != null)
-				conn.close();
-		}
-	}
-
-	@Override
-	public boolean hasSong(String hash) throws SQLException {
-		Connection conn = getConnection();
-		PreparedStatement st = null;
-
-		try {
-			st = conn.prepareStatement("SELECT song_id FROM song WHERE hash=?");
-			st.setString(1, hash);
-			st.executeQuery();
-
-			return st.getResultSet().next();
-		} finally {
-			if (st != null)
-				st.close();
-			if (conn != null)
-				conn.close();
 		}
 	}
 
-	/**
-	 * @param son a non null Song
-	 * @param albumId id of the Album containing this Song
-	 * @param artistId id of the Artist who authored this Song
-	 * @return id of the inserted row
-	 * @throws SQLException
-	 */
-	private int insertSong(Song son, int albumId, int artistId)
-			throws SQLException {
-		Connection conn = getConnection();
-		PreparedStatement st = null;
-
-		try {
-			st = conn
-					.prepareStatement(
-							"INSERT INTO song(title,filepath,position,duration,hash,"
-									+ "album_id,artist_id,album_name,artist_name,format,"
-									+ "disc_no) "
-									+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
-							Statement.RETURN_GENERATED_KEYS);
-			st.setString(1, son.title);
-			st.setString(2, son.filepath);
-			st.setInt(3, son.position);
-			st.setInt(4, son.duration);
-			st.setString(5, son.hash);
-			st.setInt(6, albumId);
-			st.setInt(7, artistId);
-			st.setString(8, son.album_name);
-			st.setString(9, son.artist_name);
-			st.setString(10, son.format);
-			st.setInt(11, son.disc_no);
-
-			st.executeUpdate();
-
-			ResultSet keys = st.getGeneratedKeys();
-			if (keys != null && keys.next()) {
-				return keys.getInt(1);
-			} else {
-				throw new SQLException("Failed to insert song " + son.title);
-			}
-		} finally {
-			if (st != null)
-				st.close();
-			if (conn != null)
-				conn.close();
-		}
+	private static final String INSERT_SONG = "INSERT INTO song(title,"
+			+ "filepath,position,duration,path_hash,album_id,artist_id,"
+			+ "album_name,artist_name,format,disc_no,file_size,file_mtime,"
+			+ "scan_gen,directory) "
+			+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+	private static void setInsertSong(PreparedStatement st, Song son,
+			int albumId, int artistId) throws SQLException {
+		st.setString(1, son.title);
+		st.setString(2, son.filepath);
+		st.setInt(3, son.position);
+		st.setInt(4, son.duration);
+		st.setLong(5, son.hash);
+		st.setInt(6, albumId);
+		st.setInt(7, artistId);
+		st.setString(8, son.album_name);
+		st.setString(9, son.artist_name);
+		st.setString(10, son.format);
+		st.setInt(11, son.disc_no);
+		st.setLong(12, son.file_size);
+		st.setLong(13, son.file_mtime);
+		// newer than the generation of the scan that found it
+		st.setLong(14, System.currentTimeMillis());
+		st.setString(15, new File(son.filepath).getParent());
+	}
+
+	private static final String UPDATE_SONG = "UPDATE song SET title=?,"
+			+ "position=?,duration=?,album_id=?,artist_id=?,album_name=?,"
+			+ "artist_name=?,format=?,disc_no=?,file_size=?,"
+			+ "file_mtime=?,scan_gen=? WHERE song_id=?";
+
+	private static void setUpdateSong(PreparedStatement st, Song son,
+			int songId, int albumId, int artistId) throws SQLException {
+		st.setString(1, son.title);
+		st.setInt(2, son.position);
+		st.setInt(3, son.duration);
+		st.setInt(4, albumId);
+		st.setInt(5, artistId);
+		st.setString(6, son.album_name);
+		st.setString(7, son.artist_name);
+		st.setString(8, son.format);
+		st.setInt(9, son.disc_no);
+		st.setLong(10, son.file_size);
+		st.setLong(11, son.file_mtime);
+		st.setLong(12, System.currentTimeMillis());
+		st.setInt(13, songId);
 	}
 
 	/**
@@ -2055,19 +2597,19 @@ final class H2DB extends DB {
 	}
 
 	@Override
-	public List<Artist> searchArtist(String name, int maxResults)
-			throws SQLException {
+	public synchronized void updateCatalog() throws SQLException {
+		long t1 = System.currentTimeMillis();
 		Connection conn = getConnection();
 		PreparedStatement st = null;
-		List<Artist> ret = new ArrayList<Artist>();
+		List<Artist> artists = new ArrayList<Artist>();
+		List<Album> albums = new ArrayList<Album>();
+		List<Song> songs = new ArrayList<Song>();
+
+		// read the three tables at once so that the snapshot is consistent
+		conn.setAutoCommit(false);
 		try {
-			st = conn
-					.prepareStatement("SELECT * FROM artist WHERE lower(artist_name) "
-							+ "LIKE lower(?) LIMIT ?");
-			st.setString(1, "%" + name + "%");
-			st.setInt(2, maxResults);
+			st = conn.prepareStatement("SELECT * FROM artist");
 			ResultSet rs = st.executeQuery();
-
 			while (rs.next()) {
 				Artist ar = new Artist();
 				ar.id = rs.getInt("artist_id");
@@ -2076,95 +2618,91 @@ final class H2DB extends DB {
 				ar.songs = rs.getInt("songs");
 				ar.playtime = rs.getInt("playtime");
 				ar.date_added = rs.getLong("date_added");
-				ret.add(ar);
+				artists.add(ar);
 			}
+			st.close();
 
-		} finally {
-			if (st != null)
-				st.close();
-			if (conn != null)
-				conn.close();
-		}
-		return ret;
-	}
-
-	@Override
-	public List<Album> searchAlbum(String title, int maxResults)
-			throws SQLException {
-		Connection conn = getConnection();
-		PreparedStatement st = null;
-		List<Album> ret = new ArrayList<Album>();
-		try {
-			st = conn
-					.prepareStatement("SELECT * FROM album WHERE lower(album_name) "
-							+ "LIKE lower(?) LIMIT ?");
-			st.setString(1, "%" + title + "%");
-			st.setInt(2, maxResults);
-			ResultSet rs = st.executeQuery();
-
+			st = conn.prepareStatement("SELECT * FROM album");
+			rs = st.executeQuery();
 			while (rs.next()) {
 				Album al = new Album();
 				al.id = rs.getInt("album_id");
+				al.artist_id = rs.getInt("artist_id");
 				al.name = rs.getString("album_name");
 				al.date = rs.getString("date");
 				al.songs = rs.getInt("songs");
 				al.playtime = rs.getInt("playtime");
 				al.date_added = rs.getLong("date_added");
-				al.artist_id = rs.getInt("artist_id");
-				al.artist_name = rs.getString("artist_name");
+				al.artwork_path = rs.getString("artwork_path");
+				al.artwork_id = rs.getString("artwork_id");
 				al.genre = rs.getString("genre");
-				ret.add(al);
+				al.artist_name = rs.getString("artist_name");
+				albums.add(al);
 			}
+			st.close();
 
-		} finally {
-			if (st != null)
-				st.close();
-			if (conn != null)
-				conn.close();
-		}
-		return ret;
-	}
-
-	@Override
-	public List<Song> searchSong(String title, int maxResults)
-			throws SQLException {
-		Connection conn = getConnection();
-		PreparedStatement st = null;
-		List<Song> ret = new ArrayList<Song>();
-		try {
-			st = conn.prepareStatement("SELECT * FROM song WHERE lower(title) "
-					+ "LIKE lower(?) LIMIT ?");
-			st.setString(1, "%" + title + "%");
-			st.setInt(2, maxResults);
-			ResultSet rs = st.executeQuery();
-
+			// file paths are left out, they are only needed to stream
+			st = conn.prepareStatement("SELECT song_id,title,position,"
+					+ "disc_no,duration,format,album_id,album_name,"
+					+ "artist_id,artist_name FROM song");
+			rs = st.executeQuery();
 			while (rs.next()) {
 				Song s = new Song();
 				s.id = rs.getInt("song_id");
 				s.title = rs.getString("title");
-				s.album_name = rs.getString("album_name");
-				s.artist_name = rs.getString("artist_name");
 				s.position = rs.getInt("position");
 				s.disc_no = rs.getInt("disc_no");
 				s.duration = rs.getInt("duration");
 				s.format = rs.getString("format");
 				s.album_id = rs.getInt("album_id");
+				s.album_name = rs.getString("album_name");
 				s.artist_id = rs.getInt("artist_id");
-				ret.add(s);
+				s.artist_name = rs.getString("artist_name");
+				songs.add(s);
 			}
-
+			conn.commit();
 		} finally {
+			conn.setAutoCommit(true);
 			if (st != null)
 				st.close();
 			if (conn != null)
 				conn.close();
 		}
-		return ret;
+
+		this.catalog = new Catalog(++catalogVersion, artists, albums, songs,
+				Config.getCatalogCache() * 1024L * 1024L);
+		Logger.debug("Updated catalog in " + (System.currentTimeMillis() - t1)
+				+ "ms: " + artists.size() + " artists, " + albums.size()
+				+ " albums, " + songs.size() + " songs");
+	}
+
+	@Override
+	public Catalog getCatalog() {
+		return catalog;
+	}
+
+	@Override
+	public List<Artist> searchArtist(String name, int maxResults)
+			throws SQLException {
+		return catalog.searchArtist(name, maxResults);
+	}
+
+	@Override
+	public List<Album> searchAlbum(String title, int maxResults)
+			throws SQLException {
+		return catalog.searchAlbum(title, maxResults);
+	}
+
+	@Override
+	public List<Song> searchSong(String title, int maxResults)
+			throws SQLException {
+		return catalog.searchSong(title, maxResults);
 	}
 
 	@Override
 	public void editArtist(int[] artist_ids, String artist_name)
 			throws SQLException {
+		clearIdCache();
 		Connection conn = getConnection();
 		conn.setAutoCommit(false);
 		PreparedStatement st = null;
@@ -2183,6 +2721,7 @@ final class H2DB extends DB {
 			if (id == -1) {
 				id = artist_ids[0];
 			}
+			dirtyArtists.add(id);
 
 			for (int artist_id : artist_ids) {
 
@@ -2221,6 +2760,7 @@ final class H2DB extends DB {
 			conn.setAutoCommit(true);
 
 			this.updateSongCount();
+			this.updateCatalog();
 
 		} catch (SQLException e) {
 			conn.rollback();
@@ -2236,17 +2776,19 @@ final class H2DB extends DB {
 	@Override
 	public void editAlbum(int[] album_ids, String album_name,
 			String artist_name, int date, String genre) throws SQLException {
+		clearIdCache();
 		Connection conn = getConnection();
 		conn.setAutoCommit(false);
 		PreparedStatement st = null;
 
 		try {
-			String ids = "";
-			for (int i = 0; i < album_ids.length; i++) {
-				ids += '?';
-				if (i < album_ids.length - 1)
-					ids += ',';
+			for (int[] chunk : chunk(album_ids)) {
+				st = conn.prepareStatement(inList("SELECT album_id,artist_id "
+						+ "FROM album WHERE album_id IN (%s)", chunk));
+				setIds(st, 1, chunk);
+				markDirty(st);
 			}
+
 			// move artist if necessary
 			if (artist_name != null && artist_name.length() > 0) {
 				int artist_id = -1;
@@ -2262,26 +2804,16 @@ final class H2DB extends DB {
 					ar.name = artist_name;
 					artist_id = insertArtist(ar);
 				}
+				dirtyArtists.add(artist_id);
 
-				st = conn.prepareStatement("UPDATE album SET " + //
+				updateIds(conn, "UPDATE album SET " + //
 						"artist_id=?, artist_name=? " + //
-						"WHERE album_id IN (" + ids + ")");
-				st.setInt(1, artist_id);
-				st.setString(2, artist_name);
-				for (int i = 0; i < album_ids.length; i++) {
-					st.setInt(i + 3, album_ids[i]);
-				}
-				st.executeUpdate();
-
-				st = conn.prepareStatement("UPDATE song SET " + //
+						"WHERE album_id IN (%s)", album_ids, artist_id,
+						artist_name);
+				updateIds(conn, "UPDATE song SET " + //
 						"artist_id=?, artist_name=? " + //
-						"WHERE album_id IN (" + ids + ")");
-				st.setInt(1, artist_id);
-				st.setString(2, artist_name);
-				for (int i = 0; i < album_ids.length; i++) {
-					st.setInt(i + 3, album_ids[i]);
-				}
-				st.executeUpdate();
+						"WHERE album_id IN (%s)", album_ids, artist_id,
+						artist_name);
 				conn.commit();
 			}
 
@@ -2298,6 +2830,14 @@ final class H2DB extends DB {
 				if (album_id == -1) {
 					album_id = album_ids[0];
 				}
+				dirtyAlbums.add(album_id);
+				st = conn.prepareStatement("SELECT artist_id FROM album "
+						+ "WHERE album_id=?");
+				st.setInt(1, album_id);
+				rs = st.executeQuery();
+				if (rs.next()) {
+					dirtyArtists.add(rs.getInt("artist_id"));
+				}
 
 				for (int i = 0; i < album_ids.length; i++) {
 					st = conn.prepareStatement("UPDATE song " + //
@@ -2339,37 +2879,21 @@ final class H2DB extends DB {
 				}
 
 			} else {
-
-				ids = "";
-				for (int i = 0; i < album_ids.length; i++) {
-					ids += '?';
-					if (i < album_ids.length - 1)
-						ids += ',';
-				}
 				if (date > 0) {
-					st = conn.prepareStatement("UPDATE album SET " + //
-							"date=? WHERE album_id IN (" + ids + ")");
-					st.setInt(1, date);
-					for (int i = 0; i < album_ids.length; i++) {
-						st.setInt(i + 2, album_ids[i]);
-					}
-					st.executeUpdate();
+					updateIds(conn, "UPDATE album SET " + //
+							"date=? WHERE album_id IN (%s)", album_ids, date);
 				}
 
 				if (genre != null && genre.length() > 0) {
-					st = conn.prepareStatement("UPDATE album SET " + //
-							"genre=? WHERE album_id IN (" + ids + ")");
-					st.setString(1, genre);
-					for (int i = 0; i < album_ids.length; i++) {
-						st.setInt(i + 2, album_ids[i]);
-					}
-					st.executeUpdate();
+					updateIds(conn, "UPDATE album SET " + //
+							"genre=? WHERE album_id IN (%s)", album_ids, genre);
 				}
 			}
 			conn.commit();
 			conn.setAutoCommit(true);
 
 			this.updateSongCount();
+			this.updateCatalog();
 
 		} catch (SQLException e) {
 			conn.rollback();
@@ -2386,6 +2910,7 @@ final class H2DB extends DB {
 	public void editSong(int[] song_ids, String song_title, int position,
 			int disc_no, String album_name, String artist_name)
 			throws SQLException {
+		clearIdCache();
 
 		Song song = getSong(song_ids[0]);
 		Album original_album = getAlbum(song.album_id);
@@ -2395,11 +2920,11 @@ final class H2DB extends DB {
 		PreparedStatement st = null;
 
 		try {
-			String ids = "";
-			for (int i = 0; i < song_ids.length; i++) {
-				ids += '?';
-				if (i < song_ids.length - 1)
-					ids += ',';
+			for (int[] chunk : chunk(song_ids)) {
+				st = conn.prepareStatement(inList("SELECT DISTINCT album_id,"
+						+ "artist_id FROM song WHERE song_id IN (%s)", chunk));
+				setIds(st, 1, chunk);
+				markDirty(st);
 			}
 
 			int artist_id = -1;
@@ -2419,15 +2944,10 @@ final class H2DB extends DB {
 					artist_id = insertArtist(ar);
 				}
 
-				st = conn.prepareStatement("UPDATE song SET " + //
+				updateIds(conn, "UPDATE song SET " + //
 						"artist_id=?, artist_name=? " + //
-						"WHERE song_id IN (" + ids + ")");
-				st.setInt(1, artist_id);
-				st.setString(2, artist_name);
-				for (int i = 0; i < song_ids.length; i++) {
-					st.setInt(i + 3, song_ids[i]);
-				}
-				st.executeUpdate();
+						"WHERE song_id IN (%s)", song_ids, artist_id,
+						artist_name);
 			}
 
 			boolean newalbum = false;
@@ -2457,18 +2977,17 @@ final class H2DB extends DB {
 					al.artwork_path = original_album.artwork_path;
 					album_id = insertAlbum(al, artist_id);
 				}
+				dirtyAlbums.add(album_id);
 
-				st = conn.prepareStatement("UPDATE song SET " + //
+				updateIds(conn, "UPDATE song SET " + //
 						"album_id=?, album_name=? " + //
-						"WHERE song_id IN (" + ids + ")");
-				st.setInt(1, album_id);
-				st.setString(2, album_name);
-				for (int i = 0; i < song_ids.length; i++) {
-					st.setInt(i + 3, song_ids[i]);
-				}
-				st.executeUpdate();
+						"WHERE song_id IN (%s)", song_ids, album_id,
+						album_name);
 			}
 
+			if (artist_id != -1) {
+				dirtyArtists.add(artist_id);
+			}
 			if (newartist) {
 				if (album_name == null || album_name.isEmpty() || !newalbum) {
 					st = conn.prepareStatement("UPDATE album SET " + //
@@ -2481,46 +3000,26 @@ final class H2DB extends DB {
 				}
 			}
 
-			ids = "";
-			for (int i = 0; i < song_ids.length; i++) {
-				ids += '?';
-				if (i < song_ids.length - 1)
-					ids += ',';
-			}
 			if (position > 0) {
-				st = conn.prepareStatement("UPDATE song SET " + //
-						"position=? WHERE song_id IN (" + ids + ")");
-				st.setInt(1, position);
-				for (int i = 0; i < song_ids.length; i++) {
-					st.setInt(i + 2, song_ids[i]);
-				}
-				st.executeUpdate();
+				updateIds(conn, "UPDATE song SET " + //
+						"position=? WHERE song_id IN (%s)", song_ids, position);
 			}
 
 			if (disc_no > 0) {
-				st = conn.prepareStatement("UPDATE song SET " + //
-						"disc_no=? WHERE song_id IN (" + ids + ")");
-				st.setInt(1, disc_no);
-				for (int i = 0; i < song_ids.length; i++) {
-					st.setInt(i + 2, song_ids[i]);
-				}
-				st.executeUpdate();
+				updateIds(conn, "UPDATE song SET " + //
+						"disc_no=? WHERE song_id IN (%s)", song_ids, disc_no);
 			}
 
 			if (song_title != null && song_title.trim().length() > 0) {
-				st = conn.prepareStatement("UPDATE song SET " + //
-						"title=? WHERE song_id IN (" + ids + ")");
-				st.setString(1, song_title);
-				for (int i = 0; i < song_ids.length; i++) {
-					st.setInt(i + 2, song_ids[i]);
-				}
-				st.executeUpdate();
+				updateIds(conn, "UPDATE song SET " + //
+						"title=? WHERE song_id IN (%s)", song_ids, song_title);
 			}
 
 			conn.commit();
 			conn.setAutoCommit(true);
 
 			this.updateSongCount();
+			this.updateCatalog();
 
 		} catch (SQLException e) {
 			conn.rollback();
@@ -2537,28 +3036,14 @@ final class H2DB extends DB {
 	public void editAlbumArtwork(int[] album_ids, String filePath)
 			throws SQLException {
 		Connection conn = getConnection();
-		PreparedStatement st = null;
 
 		try {
-			String ids = "";
-			for (int i = 0; i < album_ids.length; i++) {
-				ids += '?';
-				if (i < album_ids.length - 1)
-					ids += ',';
-			}
-			st = conn
-					.prepareStatement("UPDATE album SET artwork_path=?, artwork_id=? "
-							+ "WHERE album_id IN (" + ids + ")");
-			st.setString(1, filePath);
-			st.setString(2, "" + System.currentTimeMillis());
-			for (int i = 0; i < album_ids.length; i++) {
-				st.setInt(i + 3, album_ids[i]);
-			}
-			st.executeUpdate();
+			updateIds(conn, "UPDATE album SET artwork_path=?, artwork_id=? "
+					+ "WHERE album_id IN (%s)", album_ids, filePath, ""
+					+ System.currentTimeMillis());
+			this.updateCatalog();
 		} finally {
 			conn.setAutoCommit(true);
-			if (st != null)
-				st.close();
 			if (conn != null)
 				conn.close();
 		}
@@ -2621,4 +3106,69 @@ final class H2DB extends DB {
 		return ret;
 	}
 
+	@Override
+	public Map<String, LibraryWalker.Directory> getDirectories()
+			throws SQLException {
+		Connection conn = getConnection();
+		PreparedStatement st = null;
+		Map<String, LibraryWalker.Directory> ret = new HashMap<String, LibraryWalker.Directory>();
+
+		try {
+			st = conn.prepareStatement("SELECT path,parent,mtime,songs "
+					+ "FROM directory");
+			ResultSet rs = st.executeQuery();
+			while (rs.next()) {
+				String path = rs.getString("path");
+				ret.put(path, new LibraryWalker.Directory(path, rs
+						.getString("parent"), rs.getLong("mtime"), rs
+						.getInt("songs")));
+			}
+		} finally {
+			if (st != null)
+				st.close();
+			if (conn != null)
+				conn.close();
+		}
+		return ret;
+	}
+
+	@Override
+	public void setDirectories(Collection<LibraryWalker.Directory> dirs,
+			long generation) throws SQLException {
+		Connection conn = getConnection();
+		PreparedStatement st = null;
+		conn.setAutoCommit(false);
+
+		try {
+			st = conn.prepareStatement("MERGE INTO directory(path,parent,"
+					+ "mtime,songs,scan_gen) KEY(path) VALUES (?,?,?,?,?)");
+			for (LibraryWalker.Directory d : dirs) {
+				st.setString(1, d.path);
+				st.setString(2, d.parent);
+				st.setLong(3, d.mtime);
+				st.setInt(4, d.songs);
+				st.setLong(5, generation);
+				st.addBatch();
+			}
+			st.executeBatch();
+			st.close();
+
+			// folders that were not walked do not exist anymore
+			st = conn.prepareStatement("DELETE FROM directory "
+					+ "WHERE scan_gen<>?");
+			st.setLong(1, generation);
+			st.executeUpdate();
+			conn.commit();
+		} catch (SQLException t) {
+			conn.rollback();
+			throw t;
+		} finally {
+			conn.setAutoCommit(true);
+			if (st != null)
+				st.close();
+			if (conn != null)
+				conn.close();
+		}
+	}
+
 }
@@ -0,0 +1,134 @@
+/* This file is part of Wissl - Copyright (C) 2013 Mathieu Schnoor
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.msch.wissl.server;
+
+/**
+ * Map of primitive int keys to objects, using open addressing with
+ * linear probing. Avoids boxing the keys and the entry objects of a
+ * HashMap. Not thread safe, but can be read concurrently once filled.
+ *
+ * @author mathieu.schnoor@gmail.com
+ *
+ */
+final class IntMap<V> {
+
+	/** 0 marks empty slots, its value is stored apart */
+	private int[] keys;
+	private Object[] values;
+	private Object zero = null;
+	private int size = 0;
+	/** table is grown above that many elements */
+	private int threshold;
+
+	IntMap() {
+		this(16);
+	}
+
+	/**
+	 * @param expected number of elements, avoids growing the table
+	 */
+	IntMap(int expected) {
+		int capacity = 16;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		this.keys = new int[capacity];
+		this.values = new Object[capacity];
+		this.threshold = capacity / 2;
+	}
+
+	/**
+	 * @param key any value
+	 * @param value not null
+	 */
+	void put(int key, V value) {
+		if (key == 0) {
+			if (zero == null) {
+				size++;
+			}
+			zero = value;
+			return;
+		}
+
+		int mask = keys.length - 1;
+		int i = slot(key) & mask;
+		while (keys[i] != 0) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size > threshold) {
+			grow();
+		}
+	}
+
+	/**
+	 * @param key any value
+	 * @return value associated to the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	V get(int key) {
+		if (key == 0) {
+			return (V) zero;
+		}
+
+		int mask = keys.length - 1;
+		int i = slot(key) & mask;
+		while (keys[i] != 0) {
+			if (keys[i] == key) {
+				return (V) values[i];
+			}
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[oldKeys.length * 2];
+		values = new Object[oldKeys.length * 2];
+		threshold = keys.length / 2;
+		int mask = keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == 0) {
+				continue;
+			}
+			int i = slot(oldKeys[j]) & mask;
+			while (keys[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+
+	/**
+	 * spreads the keys over the table, ids are mostly sequential
+	 */
+	private static int slot(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,100 @@
+/* This file is part of Wissl - Copyright (C) 2013 Mathieu Schnoor
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.msch.wissl.server;
+
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Serialized JSON of one kind of element, encoded in UTF-8, by id.
+ * <p>
+ * Each {@link Catalog} has its own caches, so that fragments are never
+ * served for another version of the library. The total size of the
+ * fragments is bounded: ids are spread over stripes, each evicting its
+ * least recently used fragments beyond its share of the size, so that
+ * concurrent requests seldom wait for each other.
+ *
+ * @author mathieu.schnoor@gmail.com
+ *
+ */
+final class JSONCache {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** number of stripes, power of two */
+	private static final int STRIPES = 16;
+
+	private final Stripe[] stripes;
+
+	/**
+	 * @param maxBytes most bytes of fragments kept, 0 to keep none
+	 */
+	JSONCache(long maxBytes) {
+		stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(maxBytes / STRIPES);
+		}
+	}
+
+	/**
+	 * @param id id of the element
+	 * @return cached fragment, or null
+	 */
+	byte[] get(int id) {
+		Stripe s = stripes[id & (STRIPES - 1)];
+		synchronized (s) {
+			return s.get(id);
+		}
+	}
+
+	/**
+	 * Encode and cache a fragment, evicting older ones if needed
+	 * @param id id of the element
+	 * @param json serialized element
+	 * @return json, encoded in UTF-8
+	 */
+	byte[] put(int id, String json) {
+		byte[] bytes = json.getBytes(UTF8);
+		Stripe s = stripes[id & (STRIPES - 1)];
+		if (bytes.length > s.maxBytes) {
+			return bytes;
+		}
+		synchronized (s) {
+			byte[] old = s.put(id, bytes);
+			s.bytes += bytes.length - (old == null ? 0 : old.length);
+			Iterator<byte[]> it = s.values().iterator();
+			while (s.bytes > s.maxBytes) {
+				s.bytes -= it.next().length;
+				it.remove();
+			}
+		}
+		return bytes;
+	}
+
+	/** fragments in access order, least recently used first */
+	private static final class Stripe extends LinkedHashMap<Integer, byte[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final long maxBytes;
+		private long bytes = 0;
+
+		Stripe(long maxBytes) {
+			super(16, 0.75f, true);
+			this.maxBytes = maxBytes;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/* This file is part of Wissl - Copyright (C) 2013 Mathieu Schnoor
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.msch.wissl.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * JSON response written to the client element by element, in UTF-8.
+ * <p>
+ * Only one element and a fixed size buffer are held in memory at once,
+ * instead of the whole document. The data must be ready before the
+ * response is written, ie. a catalog snapshot or a list read from DB,
+ * so that slow clients do not hold DB connections.
+ * <p>
+ * Elements of a {@link Catalog} are written from the fragments it caches,
+ * without serializing nor encoding them again.
+ *
+ * @author mathieu.schnoor@gmail.com
+ *
+ */
+abstract class JSONStream implements StreamingOutput {
+
+	/** bytes written to the response at once */
+	private static final int BUFFER = 8192;
+
+	/** response being written */
+	private OutputStream out = null;
+
+	@Override
+	public final void write(OutputStream out) throws IOException,
+			WebApplicationException {
+		this.out = new BufferedOutputStream(out, BUFFER);
+		writeJSON();
+		// the container closes the response
+		this.out.flush();
+	}
+
+	/**
+	 * Write the whole JSON document
+	 * @throws IOException
+	 */
+	protected abstract void writeJSON() throws IOException;
+
+	/**
+	 * @param str part of the document
+	 * @throws IOException
+	 */
+	protected final void write(String str) throws IOException {
+		out.write(str.getBytes(JSONCache.UTF8));
+	}
+
+	/**
+	 * Write the elements of an array, without the brackets
+	 * @param elements elements of the array
+	 * @throws IOException
+	 */
+	protected final void writeElements(Iterable<? extends JSON> elements)
+			throws IOException {
+		for (Iterator<? extends JSON> it = elements.iterator(); it.hasNext();) {
+			write(it.next().toJSON());
+			if (it.hasNext()) {
+				out.write(',');
+			}
+		}
+	}
+
+	/**
+	 * @param ar artist of the catalog
+	 * @param catalog snapshot caching the artist
+	 * @throws IOException
+	 */
+	protected final void writeArtist(Artist ar, Catalog catalog)
+			throws IOException {
+		out.write(catalog.getJSON(ar));
+	}
+
+	/**
+	 * @param al album of the catalog
+	 * @param catalog snapshot caching the album
+	 * @throws IOException
+	 */
+	protected final void writeAlbum(Album al, Catalog catalog)
+			throws IOException {
+		out.write(catalog.getJSON(al));
+	}
+
+	/**
+	 * @param s song of the catalog
+	 * @param catalog snapshot caching the song
+	 * @throws IOException
+	 */
+	protected final void writeSong(Song s, Catalog catalog) throws IOException {
+		out.write(catalog.getJSON(s));
+	}
+
+	/**
+	 * Write artists of the catalog as elements of an array
+	 * @param artists elements of the array
+	 * @param catalog snapshot caching the artists
+	 * @throws IOException
+	 */
+	protected final void writeArtists(Iterable<Artist> artists,
+			Catalog catalog) throws IOException {
+		for (Iterator<Artist> it = artists.iterator(); it.hasNext();) {
+			writeArtist(it.next(), catalog);
+			if (it.hasNext()) {
+				out.write(',');
+			}
+		}
+	}
+
+	/**
+	 * Write albums of the catalog as elements of an array
+	 * @param albums elements of the array
+	 * @param catalog snapshot caching the albums
+	 * @throws IOException
+	 */
+	protected final void writeAlbums(Iterable<Album> albums, Catalog catalog)
+			throws IOException {
+		for (Iterator<Album> it = albums.iterator(); it.hasNext();) {
+			writeAlbum(it.next(), catalog);
+			if (it.hasNext()) {
+				out.write(',');
+			}
+		}
+	}
+
+	/**
+	 * Write songs of the catalog as elements of an array
+	 * @param songs elements of the array
+	 * @param catalog snapshot caching the songs
+	 * @throws IOException
+	 */
+	protected final void writeSongs(Iterable<Song> songs, Catalog catalog)
+			throws IOException {
+		for (Iterator<Song> it = songs.iterator(); it.hasNext();) {
+			writeSong(it.next(), catalog);
+			if (it.hasNext()) {
+				out.write(',');
+			}
+		}
+	}
+}
@@ -24,21 +24,34 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.regex.Matcher;
@@ -68,14 +81,25 @@ final class Library {
 	private static Library instance = null;
 
 	/** songs added to DB during this indexer run */
-	private long addSongCount = 0;
+	private AtomicLong addSongCount = new AtomicLong();
 	/** songs already present in DB during this indexer run */
-	private long skipSongCount = 0;
+	private AtomicLong skipSongCount = new AtomicLong();
 	/** songs that could not be added in DB during this indexer run */
-	private long failedSongCount = 0;
+	private AtomicLong failedSongCount = new AtomicLong();
 
-	/** MD5 */
-	MessageDigest md5 = null;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** MD5, MessageDigest instances cannot be shared between threads */
+	private static final ThreadLocal<MessageDigest> md5 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new Error("Cannot load MD5 digest", e);
+			}
+		}
+	};
 
 	/** parse id3 position tags that look like '2/17' */
 	private static final Pattern positionPattern = Pattern
@@ -87,29 +111,64 @@ final class Library {
 
 	/** indexer thread */
 	private Thread thread = null;
-	private boolean stop = false;
-	private boolean kill = false;
-
-	private Queue<File> files = null;
-	private Map<String, File> toRead = null;
-	private Queue<Song> songs = null;
-	private Map<String, Map<String, String>> artworks = null;
-	private Queue<Song> toInsert = null;
-	private Set<String> hashes = null;
+	private volatile boolean stop = false;
+	private volatile boolean kill = false;
+	/** set to list all folders on next scan, even those that did not change */
+	private volatile boolean relist = false;
 
-	private boolean fileSearchDone = false;
-	private boolean dbCheckDone = false;
-	private boolean fileReadDone = false;
-	private boolean resizeDone = false;
+	/**
+	 * capacity of each queue between two indexer stages.
+	 * a stage blocks when its output queue is full, so that a fast
+	 * file search does not accumulate the whole library in memory
+	 */
+	private static final int QUEUE_CAPACITY = 256;
+
+	/** maximum number of songs inserted in DB in a single transaction */
+	private static final int INSERT_BATCH = 128;
+
+	/** number of unchanged songs marked as found in a single transaction */
+	private static final int MARK_BATCH = 1024;
+
+	/* end of stream markers, put in a queue by a stage once it is done.
+	 * compared by reference only */
+	private static final FoundFile END_OF_FILES = new FoundFile(new File(""),
+			0, 0);
+	private static final FoundFile END_OF_READS = new FoundFile(new File(""),
+			0, 0);
+	private static final Song END_OF_SONGS = new Song();
+
+	private BlockingQueue<FoundFile> files = null;
+	private BlockingQueue<FoundFile> toRead = null;
+	private BlockingQueue<Song> songs = null;
+	private ConcurrentMap<String, Map<String, String>> artworks = null;
+	/** artwork search of each album during this run, by artist and album
+	 * name, see {@link #searchArtwork(File, Tag, String, String)} */
+	private ConcurrentMap<String, FutureTask<Void>> artworkSearches = null;
+	private BlockingQueue<Song> toInsert = null;
+	/** set when songs could not be marked as found, nothing is removed then */
+	private volatile boolean markFailed = false;
+
+	/** folders walked during this indexer run */
+	private Queue<LibraryWalker.Directory> walkedDirs = null;
+	/** folders that did not change since last scan, their songs are marked */
+	private Queue<String> skippedDirs = null;
+	/** folders that contain files that could not be indexed during this run */
+	private Set<String> failedDirs = null;
+
+	/** watches music folders between scans, null if disabled */
+	private LibraryWatcher watcher = null;
+	/** batches of changed files or folders, reported by the watcher */
+	private BlockingQueue<Set<File>> updates = null;
 
 	private long fileSearchTime = 0;
 	private long dbCheckTime = 0;
-	private long fileReadTime = 0;
+	/** cumulated time spent by all reader threads */
+	private AtomicLong fileReadTime = new AtomicLong();
 	private long resizeTime = 0;
 	private long dbInsertTime = 0;
 
-	/** false when idle, true when indexing */
-	private boolean working = false;
+	/** false when idle, true when indexing or about to */
+	private volatile boolean working = false;
 	/** when indexing, estimates percent done in [0,1] */
 	private float percentDone = 1.0f;
 	/** when indexing, estimates time left in seconds */
@@ -117,7 +176,28 @@ final class Library {
 	/** total songs indexed in current run */
 	private long songsDone = 0;
 	/** total songs to index in current run */
-	private long songsTodo = 0;
+	private AtomicLong songsTodo = new AtomicLong();
+
+	/** lists music folders */
+	private LibraryWalker walker = null;
+
+	/**
+	 * A music file found on disk, with size and modification time
+	 * read while listing its folder
+	 */
+	private static final class FoundFile {
+		final File file;
+		final long size;
+		final long mtime;
+		/** set once checked against DB */
+		long hash = 0;
+
+		FoundFile(File file, long size, long mtime) {
+			this.file = file;
+			this.size = size;
+			this.mtime = mtime;
+		}
+	}
 
 	/**
 	 * Create library and launch indexer thread
@@ -127,8 +207,18 @@ final class Library {
 
 		instance = new Library();
 
+		if (Config.isMusicWatchEnabled()) {
+			try {
+				instance.watcher = new LibraryWatcher();
+				instance.watcher.start();
+			} catch (IOException e) {
+				Logger.error("Cannot watch music folders, "
+						+ "changes will be found on next scan only", e);
+			}
+		}
+
 		try {
-			instance.md5 = MessageDigest.getInstance("MD5");
+			MessageDigest.getInstance("MD5");
 		} catch (NoSuchAlgorithmException e1) {
 			Logger.error("Cannot load MD5 digest", e1);
 			throw new Error("Cannot load MD5 digest", e1);
@@ -147,6 +237,9 @@ final class Library {
 		instance.kill = true;
 		instance.stop = true;
 		instance.thread.interrupt();
+		if (instance.watcher != null) {
+			instance.watcher.stop();
+		}
 	}
 
 	/**
@@ -155,10 +248,50 @@ final class Library {
 	 * whether it is currently scanning or sleeping.
 	 */
 	public static void interrupt() {
+		// the rescan is seen as running as soon as it is requested
+		instance.working = true;
 		instance.stop = true;
 		instance.thread.interrupt();
 	}
 
+	/**
+	 * Interrupt indexer thread, and list all folders on the next scan,
+	 * including those that did not change since the previous scan.
+	 * This finds files that were modified without changing their folder.
+	 */
+	public static void rescan() {
+		instance.relist = true;
+		interrupt();
+	}
+
+	/**
+	 * Index files or folders that changed since the last scan.
+	 * Paths that do not exist anymore are removed from the library.
+	 * Changes are indexed as soon as the indexer is idle, a full scan
+	 * will pick up the changes if it is running.
+	 * 
+	 * @param changes files or folders that were created, modified or deleted
+	 */
+	static void update(Set<File> changes) {
+		if (instance == null)
+			return;
+
+		Set<File> ret = new HashSet<File>();
+		for (File f : changes) {
+			String path = f.getAbsolutePath();
+			for (String root : Config.getMusicPath()) {
+				String r = new File(root).getAbsolutePath();
+				if (path.startsWith(r + File.separator)) {
+					ret.add(f);
+					break;
+				}
+			}
+		}
+		if (!ret.isEmpty()) {
+			instance.updates.add(ret);
+		}
+	}
+
 	/**
 	 * @return indexer status as JSON object
 	 */
@@ -168,17 +301,24 @@ final class Library {
 		sb.append("\"percentDone\":" + instance.percentDone + ",");
 		sb.append("\"secondsLeft\":" + instance.secondsLeft + ",");
 		sb.append("\"songsDone\":" + instance.songsDone + ",");
-		sb.append("\"songsTodo\":" + instance.songsTodo + "}");
+		sb.append("\"songsTodo\":" + instance.songsTodo.get() + "}");
 		return sb.toString();
 	}
 
 	private Library() {
-		this.songs = new ConcurrentLinkedQueue<Song>();
-		this.toRead = new ConcurrentHashMap<String, File>();
-		this.files = new ConcurrentLinkedQueue<File>();
-		this.toInsert = new ConcurrentLinkedQueue<Song>();
-		this.hashes = new HashSet<String>();
-		this.artworks = new HashMap<String, Map<String, String>>();
+		this.songs = new ArrayBlockingQueue<Song>(QUEUE_CAPACITY);
+		this.toRead = new ArrayBlockingQueue<FoundFile>(QUEUE_CAPACITY);
+		this.files = new ArrayBlockingQueue<FoundFile>(QUEUE_CAPACITY);
+		this.walker = new LibraryWalker(Config.getMusicFormats(),
+				Config.getIndexerWalkers());
+		this.toInsert = new ArrayBlockingQueue<Song>(QUEUE_CAPACITY);
+		this.updates = new LinkedBlockingQueue<Set<File>>();
+		this.walkedDirs = new ConcurrentLinkedQueue<LibraryWalker.Directory>();
+		this.skippedDirs = new ConcurrentLinkedQueue<String>();
+		this.failedDirs = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.artworks = new ConcurrentHashMap<String, Map<String, String>>();
+		this.artworkSearches = new ConcurrentHashMap<String, FutureTask<Void>>();
 
 		this.artworkFallback = new FileFilter() {
 			@Override
@@ -193,333 +333,632 @@ final class Library {
 			@Override
 			public void run() {
 				while (!kill) {
-					final long t1 = System.currentTimeMillis();
+					if (!index(null)) {
+						continue;
+					}
 
-					final List<File> music = new ArrayList<File>();
-					for (String path : Config.getMusicPath()) {
-						music.add(new File(path));
+					// wait for the next full scan, meanwhile index the
+					// changes reported by the watcher, if any
+					long next = System.currentTimeMillis()
+							+ Config.getMusicRefreshRate() * 1000L;
+					try {
+						long left = 0;
+						while (!stop
+								&& (left = next - System.currentTimeMillis()) > 0) {
+							Set<File> changes = updates.poll(left,
+									TimeUnit.MILLISECONDS);
+							if (changes != null) {
+								index(changes);
+							}
+						}
+					} catch (InterruptedException e) {
+						Logger.warn("Library indexer interrupted", e);
 					}
+				}
+			}
+
+		};
+		this.thread = new Thread(timer, "MusicIndexer");
+	}
+
+	/**
+	 * Run all indexer stages once
+	 * @param changes files or directories to index, as reported by the watcher,
+	 *  or null to scan all music folders
+	 * @return false if the indexer was interrupted
+	 */
+	private boolean index(final Set<File> changes) {
+		if (changes != null && stop) {
+			// a full scan has been requested
+			return false;
+		}
+
+		final long t1 = System.currentTimeMillis();
+		final boolean listAll = relist;
+
+		final List<File> music = new ArrayList<File>();
+		for (String path : Config.getMusicPath()) {
+			music.add(new File(path));
+		}
+		if (changes == null) {
+			// the full scan will see everything the watcher reported
+			updates.clear();
+		}
 
-					addSongCount = 0;
-					skipSongCount = 0;
-					failedSongCount = 0;
-					fileSearchTime = 0;
-					dbCheckTime = 0;
-					fileReadTime = 0;
-					dbInsertTime = 0;
-					resizeTime = 0;
-					songs.clear();
-					toRead.clear();
-					files.clear();
-					hashes.clear();
-					toInsert.clear();
-					artworks.clear();
-
-					songsTodo = 0;
-					songsDone = 0;
-					working = true;
-					stop = false;
-					percentDone = 0.0f;
-					secondsLeft = -1;
-
-					artworkRegex = Pattern.compile(Config.getArtworkRegex());
-					artworkFilter = new FileFilter() {
-						@Override
-						public boolean accept(File pathname) {
-							return (artworkRegex.matcher(pathname.getName()
-									.toLowerCase()).matches());
+		addSongCount.set(0);
+		skipSongCount.set(0);
+		failedSongCount.set(0);
+		fileSearchTime = 0;
+		dbCheckTime = 0;
+		fileReadTime.set(0);
+		dbInsertTime = 0;
+		resizeTime = 0;
+		songs.clear();
+		toRead.clear();
+		files.clear();
+		markFailed = false;
+		walkedDirs.clear();
+		skippedDirs.clear();
+		failedDirs.clear();
+		toInsert.clear();
+		artworks.clear();
+		artworkSearches.clear();
+
+		songsTodo.set(0);
+		songsDone = 0;
+		working = true;
+		if (changes == null) {
+			stop = false;
+		}
+		percentDone = 0.0f;
+		secondsLeft = -1;
+
+		artworkRegex = Pattern.compile(Config.getArtworkRegex());
+		artworkFilter = new FileFilter() {
+			@Override
+			public boolean accept(File pathname) {
+				return (artworkRegex.matcher(pathname.getName()
+						.toLowerCase()).matches());
+			}
+		};
+
+		// walks filesystem and indexes files that look like music
+		final LibraryWalker.Visitor visitor = new LibraryWalker.Visitor() {
+			@Override
+			public void visitDirectory(Path dir) throws InterruptedException {
+				if (stop)
+					throw new InterruptedException();
+				if (watcher != null) {
+					watcher.register(dir.toFile());
+				}
+			}
+
+			@Override
+			public void visitFile(Path file, BasicFileAttributes attrs)
+					throws InterruptedException {
+				songsTodo.incrementAndGet();
+				files.put(new FoundFile(file.toFile(), attrs.size(), attrs
+						.lastModifiedTime().toMillis()));
+			}
+
+			@Override
+			public void leaveDirectory(LibraryWalker.Directory dir,
+					boolean skipped) throws InterruptedException {
+				walkedDirs.add(dir);
+				if (skipped) {
+					skippedDirs.add(dir.path);
+					skipSongCount.addAndGet(dir.songs);
+				}
+			}
+		};
+		Thread fileSearch = new Thread(new Runnable() {
+			public void run() {
+				long f1 = System.currentTimeMillis();
+				boolean interrupted = false;
+				try {
+					// folders that did not change since the previous
+					// scan are not listed again
+					Map<String, LibraryWalker.Directory> previous = null;
+					if (changes == null && !listAll
+							&& Config.isIndexerDirCacheEnabled()) {
+						try {
+							previous = DB.get().getDirectories();
+						} catch (SQLException e) {
+							Logger.error("Failed to read walked folders "
+									+ "from DB, all folders will be listed", e);
 						}
-					};
-
-					// walks filesystem and indexes files that look like music
-					fileSearchDone = false;
-					Thread fileSearch = new Thread(new Runnable() {
-						public void run() {
-							long f1 = System.currentTimeMillis();
-							for (File f : music) {
+					}
+					if (changes != null) {
+						music.clear();
+						for (File f : changes) {
+							if (f.isDirectory()) {
+								music.add(f);
+							} else if (f.isFile() && isMusicFile(f)) {
 								try {
-									listFiles(f, files);
+									visitor.visitFile(f.toPath(), Files
+											.readAttributes(f.toPath(),
+													BasicFileAttributes.class));
 								} catch (IOException e) {
-									Logger.error(
-											"Failed to add directory to library: "
-													+ f.getAbsolutePath(), e);
-								} catch (InterruptedException e) {
-									return;
+									Logger.warn("Failed to read " + f, e);
 								}
 							}
-							fileSearchDone = true;
-							fileSearchTime = (System.currentTimeMillis() - f1);
 						}
-					});
-					fileSearch.start();
-
-					// exclude files that are already in DB
-					dbCheckDone = false;
-					Thread dbCheck = new Thread(new Runnable() {
-						public void run() {
-							while (!stop && !dbCheckDone) {
-								long f1 = System.currentTimeMillis();
-								while (!files.isEmpty()) {
-									File f = files.remove();
-									String hash = new String(md5.digest(f
-											.getAbsolutePath().getBytes()));
-
-									boolean hasSong = false;
-
-									try {
-										hasSong = DB.get().hasSong(hash);
-									} catch (SQLException e) {
-										Logger.error(
-												"Failed to query DB for file "
-														+ f.getAbsolutePath(),
-												e);
-									}
-									if (!hasSong) {
-										toRead.put(hash, f);
-									} else {
-										skipSongCount++;
-									}
-									hashes.add(hash);
-								}
+					}
+					walker.walk(music, previous, visitor);
+
+					// songs in skipped folders were found without listing
+					List<String> found = new ArrayList<String>(MARK_BATCH);
+					String dir = null;
+					while ((dir = skippedDirs.poll()) != null) {
+						found.add(dir);
+						if (found.size() == MARK_BATCH) {
+							markDirectories(found, t1);
+						}
+					}
+					markDirectories(found, t1);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (Throwable t) {
+					// songs that were not found must not be removed
+					Logger.error("Failed to search music files", t);
+					markFailed = true;
+				} finally {
+					fileSearchTime = (System.currentTimeMillis() - f1);
+					if (!interrupted) {
+						endOfStage(files, END_OF_FILES);
+					}
+				}
+			}
+		}, "MusicIndexer-search");
+		fileSearch.start();
+
+		// exclude files that are already in DB and did not change
+		Thread dbCheck = new Thread(new Runnable() {
+			public void run() {
+				long m1 = System.currentTimeMillis();
+				// path of all indexed files, and their size and mtime,
+				// in one query. files reported by the watcher are always read
+				LongSet known = new LongSet();
+				LongSet unchanged = new LongSet();
+				try {
+					if (changes == null) {
+						DB.get().getSongManifest(known, unchanged);
+					}
+				} catch (Throwable t) {
+					Logger.error("Failed to read indexed files "
+							+ "from DB, all files will be read", t);
+				}
+				dbCheckTime += (System.currentTimeMillis() - m1);
 
-								dbCheckTime += (System.currentTimeMillis() - f1);
-								if (fileSearchDone && files.isEmpty()) {
-									dbCheckDone = true;
-									return;
+				// songs found in DB are marked with the generation of this
+				// scan, new or updated songs are stamped when inserted.
+				long[] found = new long[MARK_BATCH];
+				int foundCount = 0;
+				boolean interrupted = false;
+				try {
+					FoundFile f = null;
+					while ((f = files.take()) != END_OF_FILES) {
+						long f1 = System.currentTimeMillis();
+						boolean hasSong = false;
+						try {
+							long hash = hashPath(f.file.getAbsolutePath());
+							hasSong = unchanged.contains(hashState(hash,
+									f.size, f.mtime));
+
+							if (known.contains(hash)) {
+								found[foundCount++] = hash;
+								if (foundCount == MARK_BATCH) {
+									markSongs(found, foundCount, t1);
+									foundCount = 0;
 								}
 							}
+							f.hash = hash;
+						} catch (Throwable t) {
+							Logger.error("Failed to check " + f.file, t);
+							markFailed = true;
+							continue;
 						}
-					});
-					dbCheck.start();
-
-					// read file metadata
-					fileReadDone = false;
-					Thread fileRead = new Thread(new Runnable() {
-						public void run() {
-							while (!stop && !fileReadDone) {
-								long f1 = System.currentTimeMillis();
-
-								Iterator<Entry<String, File>> it = toRead
-										.entrySet().iterator();
-								while (it.hasNext()) {
-									Entry<String, File> f = it.next();
-									it.remove();
-									try {
-										Song s = getSong(f.getValue(),
-												f.getKey());
-										songs.add(s);
-										addSongCount++;
-									} catch (IOException e) {
-										Logger.warn(
-												"Failed to read music file "
-														+ f.getValue(), e);
-										failedSongCount++;
-									}
-								}
+						dbCheckTime += (System.currentTimeMillis() - f1);
 
-								fileReadTime += (System.currentTimeMillis() - f1);
-								if (dbCheckDone && toRead.isEmpty()) {
-									fileReadDone = true;
-									return;
-								}
-							}
+						if (!hasSong) {
+							toRead.put(f);
+						} else {
+							skipSongCount.incrementAndGet();
 						}
-					});
-					fileRead.start();
-
-					// resize images
-					resizeDone = false;
-					Thread resize = new Thread(new Runnable() {
-						public void run() {
-							while (!stop && !resizeDone) {
-								long f1 = System.currentTimeMillis();
-								while (!songs.isEmpty()) {
-									Song s = songs.remove();
-									String path = null;
-									Map<String, String> m = artworks
-											.get(s.artist.name);
-									if (m != null
-											&& m.containsKey(s.album.name)) {
-										path = m.get(s.album.name);
-									}
-									if (path != null) {
-										if (new File(path + "_SCALED.jpg")
-												.exists()) {
-											path = path + "_SCALED.jpg";
-										} else {
-											try {
-												path = resizeArtwork(path);
-											} catch (IOException e) {
-												Logger.warn(
-														"Failed to resize image",
-														e);
-											}
-										}
-										s.album.artwork_path = path;
-										s.album.artwork_id = ""
-												+ System.currentTimeMillis();
-									}
-									toInsert.add(s);
-								}
-								resizeTime += (System.currentTimeMillis() - f1);
+					}
+					long f1 = System.currentTimeMillis();
+					markSongs(found, foundCount, t1);
+					dbCheckTime += (System.currentTimeMillis() - f1);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (Throwable t) {
+					Logger.error("Failed to check music files", t);
+					markFailed = true;
+				} finally {
+					if (!interrupted) {
+						endOfStage(toRead, END_OF_READS);
+					}
+				}
+			}
+		}, "MusicIndexer-check");
+		dbCheck.start();
+
+		// read file metadata, using several threads since
+		// parsing tags is by far the slowest stage
+		final int readerCount = Config.getIndexerReaders();
+		final AtomicInteger readersLeft = new AtomicInteger(
+				readerCount);
+		Runnable reader = new Runnable() {
+			public void run() {
+				boolean interrupted = false;
+				try {
+					FoundFile f = null;
+					while ((f = toRead.take()) != END_OF_READS) {
+						long f1 = System.currentTimeMillis();
+						Song s = null;
+						try {
+							s = getSong(f.file, f.hash);
+							s.file_size = f.size;
+							s.file_mtime = f.mtime;
+							addSongCount.incrementAndGet();
+						} catch (Throwable t) {
+							// corrupt files may break the tag library
+							Logger.warn(
+									"Failed to read music file "
+											+ f.file, t);
+							s = null;
+							failedSongCount.incrementAndGet();
+							failedDirs.add(f.file.getParent());
+						}
+						fileReadTime.addAndGet(System
+								.currentTimeMillis() - f1);
 
-								if (fileReadDone && songs.isEmpty()) {
-									resizeDone = true;
-									return;
-								}
-							}
+						if (s != null) {
+							songs.put(s);
 						}
-					});
-					resize.start();
-
-					// insert Songs in DB
-					Thread dbInsert = new Thread(new Runnable() {
-						public void run() {
-							while (!stop) {
-								long f1 = System.currentTimeMillis();
-								while (!toInsert.isEmpty()) {
-									Song s = toInsert.remove();
-									try {
-										DB.get().addSong(s);
-									} catch (SQLException e) {
-										Logger.warn("Failed to insert in DB "
-												+ s.filepath, e);
-										failedSongCount++;
-									}
-									songsDone++;
-									percentDone = songsDone
-											/ ((float) songsTodo);
-
-									float songsPerSec = songsDone
-											/ ((System.currentTimeMillis() - t1) / 1000f);
-									secondsLeft = (long) ((songsTodo - songsDone) / songsPerSec);
-								}
-								dbInsertTime += (System.currentTimeMillis() - f1);
+					}
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} finally {
+					// let the other readers see the marker,
+					// the last one to finish tells the next stage
+					if (!interrupted) {
+						endOfStage(toRead, END_OF_READS);
+						if (readersLeft.decrementAndGet() == 0) {
+							endOfStage(songs, END_OF_SONGS);
+						}
+					}
+				}
+			}
+		};
+		Thread[] fileRead = new Thread[readerCount];
+		for (int i = 0; i < readerCount; i++) {
+			fileRead[i] = new Thread(reader, "MusicIndexer-read-"
+					+ i);
+			fileRead[i].start();
+		}
 
-								if (resizeDone && toInsert.isEmpty()) {
-									return;
+		// resize images
+		Thread resize = new Thread(new Runnable() {
+			public void run() {
+				boolean interrupted = false;
+				try {
+					Song s = null;
+					while ((s = songs.take()) != END_OF_SONGS) {
+						long f1 = System.currentTimeMillis();
+						String path = null;
+						Map<String, String> m = artworks
+								.get(s.artist.name);
+						if (m != null
+								&& m.containsKey(s.album.name)) {
+							path = m.get(s.album.name);
+						}
+						if (path != null) {
+							if (new File(path + "_SCALED.jpg")
+									.exists()) {
+								path = path + "_SCALED.jpg";
+							} else {
+								try {
+									path = resizeArtwork(path);
+								} catch (Throwable t) {
+									Logger.warn(
+											"Failed to resize image",
+											t);
 								}
 							}
+							s.album.artwork_path = path;
+							s.album.artwork_id = ""
+									+ System.currentTimeMillis();
 						}
-					});
-					dbInsert.start();
-					try {
-						dbInsert.join();
-					} catch (InterruptedException e3) {
-						Logger.warn("Library indexer interrupted", e3);
-						fileSearch.interrupt();
-						dbCheck.interrupt();
-						fileRead.interrupt();
-						resize.interrupt();
-						dbInsert.interrupt();
+						resizeTime += (System.currentTimeMillis() - f1);
+						toInsert.put(s);
 					}
-
-					if (Thread.interrupted()) {
-						Logger.warn("Library indexer has been interrupted");
-						continue;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} finally {
+					if (!interrupted) {
+						endOfStage(toInsert, END_OF_SONGS);
 					}
+				}
+			}
+		}, "MusicIndexer-resize");
+		resize.start();
 
-					// remove files from DB that were not found
-					int removed = 0;
-					long r1 = System.currentTimeMillis();
-					try {
-						removed = DB.get().removeSongs(hashes);
-					} catch (SQLException e3) {
-						Logger.error("Failed to remove songs", e3);
-					}
-					long dbRemoveTime = (System.currentTimeMillis() - r1);
+		// insert Songs in DB, taking all queued songs at once
+		Thread dbInsert = new Thread(new Runnable() {
+			public void run() {
+				try {
+					List<Song> batch = new ArrayList<Song>(INSERT_BATCH);
+					boolean end = false;
+					while (!end) {
+						batch.clear();
+						batch.add(toInsert.take());
+						toInsert.drainTo(batch, INSERT_BATCH - 1);
+						// the marker is always the last queued element
+						if (batch.get(batch.size() - 1) == END_OF_SONGS) {
+							batch.remove(batch.size() - 1);
+							end = true;
+						}
+						if (batch.isEmpty()) {
+							continue;
+						}
 
-					// update statistics
-					long u1 = System.currentTimeMillis();
-					try {
-						DB.get().updateSongCount();
-					} catch (SQLException e1) {
-						Logger.error("Failed to update song count", e1);
+						long f1 = System.currentTimeMillis();
+						try {
+							DB.get().addSongs(batch);
+						} catch (Throwable e) {
+							// find out which song(s) failed
+							Logger.warn("Failed to insert " + batch.size()
+									+ " songs in DB, inserting one by one", e);
+							for (Song s : batch) {
+								try {
+									DB.get().addSong(s);
+								} catch (Throwable e2) {
+									Logger.warn("Failed to insert in DB "
+											+ s.filepath, e2);
+									failedSongCount.incrementAndGet();
+									failedDirs.add(new File(s.filepath)
+											.getParent());
+								}
+							}
+						}
+						songsDone += batch.size();
+						percentDone = songsDone
+								/ ((float) songsTodo.get());
+
+						float songsPerSec = songsDone
+								/ ((System.currentTimeMillis() - t1) / 1000f);
+						secondsLeft = (long) ((songsTodo.get() - songsDone) / songsPerSec);
+						dbInsertTime += (System.currentTimeMillis() - f1);
 					}
-					long dbUpdateTime = (System.currentTimeMillis() - u1);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "MusicIndexer-insert");
+		dbInsert.start();
+
+		List<Thread> stages = new ArrayList<Thread>();
+		stages.add(fileSearch);
+		stages.add(dbCheck);
+		stages.addAll(Arrays.asList(fileRead));
+		stages.add(resize);
+		stages.add(dbInsert);
+		boolean interrupted = false;
+		try {
+			dbInsert.join();
+		} catch (InterruptedException e3) {
+			Logger.warn("Library indexer interrupted", e3);
+			interrupted = true;
+		}
 
-					try {
-						RuntimeStats.get().updateFromDB();
-					} catch (SQLException e) {
-						Logger.error("Failed to update runtime statistics", e);
-					}
+		if (interrupted || stop) {
+			// stages blocked on a queue wake up when interrupted,
+			// wait for them so that the next run starts clean
+			for (Thread stage : stages) {
+				stage.interrupt();
+			}
+			for (Thread stage : stages) {
+				try {
+					stage.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			Thread.interrupted();
+			Logger.warn("Library indexer has been interrupted");
+			return false;
+		}
 
-					working = false;
-
-					long t2 = (System.currentTimeMillis() - t1);
-					Logger.info("Processed " + songsDone + " files " //
-							+ "(add:" + addSongCount + "," //
-							+ "skip:" + skipSongCount + "," //
-							+ "fail:" + failedSongCount + "," //
-							+ "rem:" + removed + ")");
-					Logger.info("Indexer took " + t2 + " ("
-							+ ((float) songsDone / ((float) t2 / 1000))
-							+ " /s) (" //
-							+ "search:" + fileSearchTime + "," //
-							+ "check:" + dbCheckTime + ","//
-							+ "read:" + fileReadTime + "," //
-							+ "resize:" + resizeTime + "," //
-							+ "insert:" + dbInsertTime + "," //
-							+ "remove:" + dbRemoveTime + "," //
-							+ "update:" + dbUpdateTime + ")");
-
-					int seconds = Config.getMusicRefreshRate();
-					try {
-						Thread.sleep(seconds * 1000);
-					} catch (InterruptedException e) {
-						Logger.warn("Library indexer interrupted", e);
+		// remove files from DB that were not found
+		int removed = 0;
+		long r1 = System.currentTimeMillis();
+		try {
+			if (changes == null) {
+				if (markFailed) {
+					Logger.warn("Some songs could not be marked as found, "
+							+ "no song will be removed");
+				} else {
+					removed = DB.get().removeSongs(t1);
+				}
+			} else {
+				for (File f : changes) {
+					if (!f.exists()) {
+						removed += DB.get().removeSongsInPath(
+								f.getAbsolutePath());
 					}
 				}
 			}
+		} catch (SQLException e3) {
+			Logger.error("Failed to remove songs", e3);
+		}
+		long dbRemoveTime = (System.currentTimeMillis() - r1);
+
+		// remember walked folders for the next scan, those with files that
+		// could not be indexed will be listed again
+		if (changes == null && !markFailed) {
+			List<LibraryWalker.Directory> dirs = new ArrayList<LibraryWalker.Directory>(
+					walkedDirs.size());
+			for (LibraryWalker.Directory d : walkedDirs) {
+				if (failedDirs.contains(d.path)) {
+					d = new LibraryWalker.Directory(d.path, d.parent, -1,
+							d.songs);
+				}
+				dirs.add(d);
+			}
+			try {
+				DB.get().setDirectories(dirs, t1);
+			} catch (SQLException e) {
+				Logger.error("Failed to save walked folders", e);
+			}
+			walkedDirs.clear();
+			if (listAll) {
+				relist = false;
+			}
+		}
 
-		};
-		this.thread = new Thread(timer, "MusicIndexer");
+		// update statistics, and the catalog only if the library changed
+		// so that its cached responses and version remain valid
+		long u1 = System.currentTimeMillis();
+		boolean changed = true;
+		try {
+			changed = DB.get().updateSongCount();
+		} catch (SQLException e1) {
+			Logger.error("Failed to update song count", e1);
+		}
+		if (changed) {
+			try {
+				DB.get().updateCatalog();
+			} catch (SQLException e1) {
+				Logger.error("Failed to update catalog", e1);
+			}
+		}
+		long dbUpdateTime = (System.currentTimeMillis() - u1);
+
+		try {
+			RuntimeStats.get().updateFromDB();
+		} catch (SQLException e) {
+			Logger.error("Failed to update runtime statistics", e);
+		}
+
+		working = false;
+
+		long t2 = (System.currentTimeMillis() - t1);
+		Logger.info("Processed " + songsDone + " files " //
+				+ "(add:" + addSongCount + "," //
+				+ "skip:" + skipSongCount + "," //
+				+ "fail:" + failedSongCount + "," //
+				+ "rem:" + removed + ")");
+		Logger.info("Indexer took " + t2 + " ("
+				+ ((float) songsDone / ((float) t2 / 1000))
+				+ " /s) (" //
+				+ "search:" + fileSearchTime + "," //
+				+ "check:" + dbCheckTime + ","//
+				+ "read:" + fileReadTime + "/" + readerCount + "," //
+				+ "resize:" + resizeTime + "," //
+				+ "insert:" + dbInsertTime + "," //
+				+ "remove:" + dbRemoveTime + "," //
+				+ "update:" + dbUpdateTime + ")");
+
+		return true;
 	}
 
-	private void startIndexing() {
-		this.thread.start();
+	/**
+	 * Tell the next stage of the indexer that there is nothing left,
+	 * also after a failure so that it does not wait forever
+	 * @param queue input of the next stage
+	 * @param end end marker of the queue
+	 */
+	private static <T> void endOfStage(BlockingQueue<T> queue, T end) {
+		try {
+			queue.put(end);
+		} catch (InterruptedException e) {
+			// the indexer is stopping, stages are interrupted and joined
+			Thread.currentThread().interrupt();
+		}
 	}
 
-	private void listFiles(File dir, Queue<File> acc) throws IOException,
-			InterruptedException {
-		if (stop)
-			throw new InterruptedException();
+	/**
+	 * Mark songs as found during the scan that started at
+	 * the given generation
+	 * @param found path hashes of songs found
+	 * @param count number of hashes to read in found
+	 */
+	private void markSongs(long[] found, int count, long generation) {
+		if (count == 0) {
+			return;
+		}
+		try {
+			DB.get().markSongs(Arrays.copyOf(found, count), generation);
+		} catch (SQLException e) {
+			Logger.error("Failed to mark songs as found", e);
+			markFailed = true;
+		}
+	}
 
-		if (!dir.isDirectory()) {
-			throw new IOException(dir.getAbsolutePath() + " is not a directory");
+	/**
+	 * Mark songs in folders that were not listed as found during the scan
+	 * that started at the given generation, then clear the list
+	 */
+	private void markDirectories(List<String> dirs, long generation) {
+		if (dirs.isEmpty()) {
+			return;
+		}
+		try {
+			DB.get().markSongsInDirectories(dirs, generation);
+		} catch (SQLException e) {
+			Logger.error("Failed to mark songs as found", e);
+			markFailed = true;
 		}
+		dirs.clear();
+	}
 
-		File[] children = dir.listFiles(new FileFilter() {
-			@Override
-			public boolean accept(File pathname) {
-				if (pathname.getAbsolutePath().length() > 254) {
-					return false;
-				}
+	private void startIndexing() {
+		this.thread.start();
+	}
 
-				String name = pathname.getName().toLowerCase();
-				for (String format : Config.getMusicFormats()) {
-					if (name.endsWith(format)) {
-						return true;
-					}
-				}
-				if (pathname.isDirectory()) {
-					return true;
-				}
-				return false;
-			}
-		});
+	/**
+	 * @return true if the file name has one of the configured music formats
+	 */
+	static boolean isMusicFile(File f) {
+		if (f.getAbsolutePath().length() > 254) {
+			return false;
+		}
 
-		for (File child : children) {
-			if (child.isDirectory()) {
-				listFiles(child, acc);
-			} else {
-				acc.add(child);
-				songsTodo++;
-			}
+		return instance.walker.isMusicFile(f.getName());
+	}
+
+	/**
+	 * @param path absolute path of a music file
+	 * @return stable 64 bits fingerprint of the path:
+	 * the first 8 bytes of the MD5 digest of its UTF-8 encoding
+	 */
+	static long hashPath(String path) {
+		byte[] d = md5.get().digest(path.getBytes(UTF8));
+		long ret = 0;
+		for (int i = 0; i < 8; i++) {
+			ret = (ret << 8) | (d[i] & 0xFF);
 		}
+		return ret;
 	}
 
-	private Song getSong(File mp3, String hash) throws IOException {
+	/**
+	 * @param hash fingerprint of a file path, see {@link #hashPath(String)}
+	 * @param size file size in bytes
+	 * @param mtime file last modification time
+	 * @return fingerprint of the file path, size and modification time,
+	 * that changes whenever the file does
+	 */
+	static long hashState(long hash, long size, long mtime) {
+		long h = hash;
+		h = (h ^ size) * 0x9E3779B97F4A7C15L;
+		h ^= (h >>> 32);
+		h = (h ^ mtime) * 0xC2B2AE3D27D4EB4FL;
+		h ^= (h >>> 29);
+		return h;
+	}
+
+	private Song getSong(File mp3, long hash) throws IOException {
 		Song song = new Song();
 		Album album = new Album();
 		Artist artist = new Artist();
@@ -577,89 +1016,7 @@ final class Library {
 				artist.name = tag.getFirst(FieldKey.ARTIST);
 			}
 
-			Map<String, String> art = artworks.get(artist.name);
-			boolean hasArt = (art != null && art.containsKey(album.name));
-			if (!hasArt) {
-				File artwork = null;
-				Artwork at = tag.getFirstArtwork();
-
-				String fileName = artist.name.replaceAll("/|\\\\|\\?", "_")
-						+ "___" + album.name.replaceAll("/|\\\\|\\?", "_");
-
-				// tag exists and may contain artwork
-				if (at != null) {
-					artwork = new File(Config.getArtworkPath()
-							+ File.separatorChar + fileName);
-					// artwork may already exist from previous run / song
-					if (!artwork.exists()) {
-
-						byte[] img = null;
-						String url = null;
-						try {
-							img = at.getBinaryData();
-						} catch (Throwable t) {
-							// the tag reading lib can throws funny stuff
-							Logger.warn(
-									"Failed to read image in "
-											+ mp3.getAbsolutePath(), t);
-						}
-						try {
-							url = at.getImageUrl();
-						} catch (Throwable t) {
-							Logger.warn(
-									"Failed to read image url in "
-											+ mp3.getAbsolutePath(), t);
-						}
-
-						if (url != null && url.trim().length() > 0) {
-							Logger.info("GOT URL " + url);
-						}
-
-						// found image in tag... best case scenario
-						if (img != null) {
-							FileOutputStream fos = new FileOutputStream(artwork);
-							fos.write(img);
-							fos.close();
-						}
-					}
-				}
-
-				// no tag, take a semi-random file in folder
-				if (artwork == null || !artwork.exists()) {
-					artwork = null;
-					// search inside current directory
-					File dir = mp3.getParentFile();
-					File[] matches = dir.listFiles(artworkFilter);
-					if (matches.length > 0) {
-						File dest = new File(Config.getArtworkPath()
-								+ File.separatorChar + fileName);
-						FileUtils.copyFile(matches[0], dest);
-						artwork = dest;
-					} else {
-						// take first image in folder! probably wrong..
-						matches = dir.listFiles(artworkFallback);
-						if (matches.length > 0) {
-							File dest = new File(Config.getArtworkPath()
-									+ File.separatorChar + fileName);
-							FileUtils.copyFile(matches[0], dest);
-							artwork = dest;
-						} else {
-							// no artwork found...
-							artwork = null;
-						}
-					}
-				}
-				if (artwork != null && artwork.exists()) {
-					Map<String, String> m = artworks.get(artist.name);
-					if (m == null) {
-						m = new ConcurrentHashMap<String, String>();
-						artworks.put(artist.name, m);
-					}
-					if (!m.containsKey(album.name)) {
-						m.put(album.name, artwork.getAbsolutePath());
-					}
-				}
-			}
+			searchArtwork(mp3, tag, artist.name, album.name);
 		}
 
 		song.filepath = mp3.getAbsolutePath();
@@ -699,6 +1056,147 @@ final class Library {
 		return song;
 	}
 
+	/**
+	 * Search the artwork of an album once per run, whether it is found or
+	 * not. Reader threads may be reading songs from the same album
+	 * concurrently: the first one searches the artwork, the others wait
+	 * for its result, and readers of other albums are not blocked.
+	 * @param mp3 song file
+	 * @param tag song tag
+	 * @param artistName artist name read from the tag
+	 * @param albumName album name read from the tag
+	 * @throws IOException if this thread failed to search the artwork
+	 */
+	private void searchArtwork(final File mp3, final Tag tag,
+			final String artistName, final String albumName)
+			throws IOException {
+		FutureTask<Void> search = new FutureTask<Void>(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				findArtwork(mp3, tag, artistName, albumName);
+				return null;
+			}
+		});
+		FutureTask<Void> claimed = artworkSearches.putIfAbsent(artistName
+				+ '\u0000' + albumName, search);
+		if (claimed == null) {
+			search.run();
+			claimed = search;
+		}
+
+		try {
+			claimed.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// failures are reported once, by the thread that searched
+			if (claimed == search) {
+				Throwable t = e.getCause();
+				if (t instanceof IOException) {
+					throw (IOException) t;
+				} else if (t instanceof RuntimeException) {
+					throw (RuntimeException) t;
+				} else if (t instanceof Error) {
+					throw (Error) t;
+				}
+				throw new IOException(t);
+			}
+		}
+	}
+
+	/**
+	 * Find an artwork for the album containing a song, either in the song tag or
+	 * in the song directory, and copy it to the artwork folder
+	 * @param mp3 song file
+	 * @param tag song tag
+	 * @param artistName artist name read from the tag
+	 * @param albumName album name read from the tag
+	 * @throws IOException
+	 */
+	private void findArtwork(File mp3, Tag tag, String artistName,
+			String albumName) throws IOException {
+		File artwork = null;
+		Artwork at = tag.getFirstArtwork();
+
+		String fileName = artistName.replaceAll("/|\\\\|\\?", "_")
+				+ "___" + albumName.replaceAll("/|\\\\|\\?", "_");
+
+		// tag exists and may contain artwork
+		if (at != null) {
+			artwork = new File(Config.getArtworkPath()
+					+ File.separatorChar + fileName);
+			// artwork may already exist from previous run / song
+			if (!artwork.exists()) {
+
+				byte[] img = null;
+				String url = null;
+				try {
+					img = at.getBinaryData();
+				} catch (Throwable t) {
+					// the tag reading lib can throws funny stuff
+					Logger.warn(
+							"Failed to read image in "
+									+ mp3.getAbsolutePath(), t);
+				}
+				try {
+					url = at.getImageUrl();
+				} catch (Throwable t) {
+					Logger.warn(
+							"Failed to read image url in "
+									+ mp3.getAbsolutePath(), t);
+				}
+
+				if (url != null && url.trim().length() > 0) {
+					Logger.info("GOT URL " + url);
+				}
+
+				// found image in tag... best case scenario
+				if (img != null) {
+					FileOutputStream fos = new FileOutputStream(artwork);
+					fos.write(img);
+					fos.close();
+				}
+			}
+		}
+
+		// no tag, take a semi-random file in folder
+		if (artwork == null || !artwork.exists()) {
+			artwork = null;
+			// search inside current directory
+			File dir = mp3.getParentFile();
+			File[] matches = dir.listFiles(artworkFilter);
+			if (matches.length > 0) {
+				File dest = new File(Config.getArtworkPath()
+						+ File.separatorChar + fileName);
+				FileUtils.copyFile(matches[0], dest);
+				artwork = dest;
+			} else {
+				// take first image in folder! probably wrong..
+				matches = dir.listFiles(artworkFallback);
+				if (matches.length > 0) {
+					File dest = new File(Config.getArtworkPath()
+							+ File.separatorChar + fileName);
+					FileUtils.copyFile(matches[0], dest);
+					artwork = dest;
+				} else {
+					// no artwork found...
+					artwork = null;
+				}
+			}
+		}
+		if (artwork != null && artwork.exists()) {
+			// albums of the same artist may be searched concurrently
+			Map<String, String> m = new ConcurrentHashMap<String, String>();
+			Map<String, String> known = artworks.putIfAbsent(artistName, m);
+			if (known != null) {
+				m = known;
+			}
+			if (!m.containsKey(albumName)) {
+				m.put(albumName, artwork.getAbsolutePath());
+			}
+		}
+	}
+
 	public static String resizeArtwork(String artPath) throws IOException {
 		BufferedImage orig = ImageIO.read(new File(artPath));
 
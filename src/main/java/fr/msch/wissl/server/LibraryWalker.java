@@ -0,0 +1,322 @@
+/* This file is part of Wissl - Copyright (C) 2013 Mathieu Schnoor
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.msch.wissl.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Walks music folders looking for music files.
+ * Each music folder is walked by its own fork/join pool, so that
+ * several folders, and several subfolders of each, are listed concurrently.
+ * The attributes of each entry are read only once, while listing its folder.
+ * Folders that did not change since they were last listed are not listed
+ * again, their subfolders are known from the previous walk.
+ *
+ * @author mathieu.schnoor@gmail.com
+ *
+ */
+final class LibraryWalker {
+
+	/**
+	 * Receives folders and music files found by the walker.
+	 * Called concurrently by all walker threads.
+	 */
+	interface Visitor {
+		/**
+		 * @param dir a folder about to be listed, or skipped
+		 * @throws InterruptedException to stop walking
+		 */
+		void visitDirectory(Path dir) throws InterruptedException;
+
+		/**
+		 * @param dir a folder once walked
+		 * @param skipped true if the folder did not change since the
+		 * previous walk and was not listed: its music files were not visited
+		 * @throws InterruptedException to stop walking
+		 */
+		void leaveDirectory(Directory dir, boolean skipped)
+				throws InterruptedException;
+
+		/**
+		 * @param file a music file
+		 * @param attrs attributes of the file, read when listing its folder
+		 * @throws InterruptedException to stop walking
+		 */
+		void visitFile(Path file, BasicFileAttributes attrs)
+				throws InterruptedException;
+	}
+
+	/**
+	 * A walked folder, as remembered until the next walk
+	 */
+	static final class Directory {
+		/** absolute path */
+		final String path;
+		/** absolute path of the parent folder, null for a music folder */
+		final String parent;
+		/** last modification time when walked, -1 if it cannot be trusted */
+		final long mtime;
+		/** number of music files directly in this folder */
+		final int songs;
+
+		Directory(String path, String parent, long mtime, int songs) {
+			this.path = path;
+			this.parent = parent;
+			this.mtime = mtime;
+			this.songs = songs;
+		}
+	}
+
+	/**
+	 * Folder modification times are only trusted when older than that,
+	 * some filesystems only store them to the second or two.
+	 * A folder modified again within that delay would keep the same mtime.
+	 */
+	private static final long MTIME_RESOLUTION = 2000;
+
+	/** lower case extensions of music files, without dot */
+	private final Set<String> formats;
+	/** number of folders listed concurrently in each music folder */
+	private final int parallelism;
+
+	/**
+	 * @param formats extensions of music files, without dot
+	 * @param parallelism number of folders listed concurrently in
+	 * each music folder
+	 */
+	LibraryWalker(List<String> formats, int parallelism) {
+		this.formats = new HashSet<String>();
+		for (String format : formats) {
+			this.formats.add(format.toLowerCase());
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @param name file name
+	 * @return true if the file name has one of the music extensions
+	 */
+	boolean isMusicFile(String name) {
+		int dot = name.lastIndexOf('.');
+		if (dot == -1) {
+			return false;
+		}
+		return formats.contains(name.substring(dot + 1).toLowerCase());
+	}
+
+	/**
+	 * Walk several folders concurrently, returns when all are done
+	 * @param roots folders to walk
+	 * @param previous folders walked previously by path, that are skipped
+	 * if their modification time did not change. null to list all folders
+	 * @param visitor receives folders and music files
+	 * @throws InterruptedException walk stopped by the visitor or
+	 * the calling thread was interrupted
+	 */
+	void walk(List<File> roots, Map<String, Directory> previous,
+			Visitor visitor) throws InterruptedException {
+		Walk walk = new Walk(previous, visitor);
+		List<ForkJoinPool> pools = new ArrayList<ForkJoinPool>();
+		List<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>();
+		List<File> walked = new ArrayList<File>();
+		try {
+			for (File root : roots) {
+				if (!root.isDirectory()) {
+					Logger.error("Failed to add directory to library: "
+							+ root.getAbsolutePath(), new IOException(
+							root.getAbsolutePath() + " is not a directory"));
+					continue;
+				}
+				Path dir = root.getAbsoluteFile().toPath();
+				long mtime = -1;
+				try {
+					mtime = Files.getLastModifiedTime(dir).toMillis();
+				} catch (IOException e) {
+					Logger.warn("Failed to read " + dir, e);
+				}
+				ForkJoinPool pool = new ForkJoinPool(parallelism);
+				pools.add(pool);
+				tasks.add(pool.submit(new WalkTask(walk, dir, null, mtime)));
+				walked.add(root);
+			}
+
+			for (int i = 0; i < tasks.size(); i++) {
+				try {
+					tasks.get(i).get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof CancellationException) {
+						throw new InterruptedException();
+					}
+					Logger.error("Failed to add directory to library: "
+							+ walked.get(i).getAbsolutePath(), e.getCause());
+				} catch (CancellationException e) {
+					throw new InterruptedException();
+				}
+			}
+		} finally {
+			for (ForkJoinPool pool : pools) {
+				pool.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * State shared by all tasks of a single walk
+	 */
+	private static final class Walk {
+		final Map<String, Directory> previous;
+		/** paths of the subfolders of each previously walked folder */
+		final Map<String, List<String>> children;
+		final Visitor visitor;
+		/** folders modified after that are not trusted */
+		final long recent;
+
+		Walk(Map<String, Directory> previous, Visitor visitor) {
+			this.previous = (previous == null ? Collections
+					.<String, Directory> emptyMap() : previous);
+			this.children = new HashMap<String, List<String>>();
+			for (Directory d : this.previous.values()) {
+				if (d.parent == null) {
+					continue;
+				}
+				List<String> l = children.get(d.parent);
+				if (l == null) {
+					l = new ArrayList<String>();
+					children.put(d.parent, l);
+				}
+				l.add(d.path);
+			}
+			this.visitor = visitor;
+			this.recent = System.currentTimeMillis() - MTIME_RESOLUTION;
+		}
+	}
+
+	/**
+	 * Lists a single folder, then its subfolders in parallel
+	 */
+	private final class WalkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Walk walk;
+		private final Path dir;
+		private final String parent;
+		private final long mtime;
+
+		WalkTask(Walk walk, Path dir, String parent, long mtime) {
+			this.walk = walk;
+			this.dir = dir;
+			this.parent = parent;
+			this.mtime = (mtime > walk.recent ? -1 : mtime);
+		}
+
+		@Override
+		protected void compute() {
+			List<WalkTask> subdirs = new ArrayList<WalkTask>();
+			try {
+				walk.visitor.visitDirectory(dir);
+
+				String path = dir.toString();
+				Directory known = walk.previous.get(path);
+				if (known != null && mtime != -1 && known.mtime == mtime) {
+					// no entry was added or removed, only walk subfolders
+					walk.visitor.leaveDirectory(known, true);
+					List<String> l = walk.children.get(path);
+					if (l != null) {
+						for (String sub : l) {
+							addSubdir(subdirs, Paths.get(sub));
+						}
+					}
+				} else {
+					int songs = 0;
+					DirectoryStream<Path> children = Files
+							.newDirectoryStream(dir);
+					try {
+						for (Path child : children) {
+							if (child.toString().length() > 254) {
+								continue;
+							}
+
+							BasicFileAttributes attrs = null;
+							try {
+								attrs = Files.readAttributes(child,
+										BasicFileAttributes.class);
+							} catch (IOException e) {
+								// broken link, no permission..
+								Logger.warn("Failed to read " + child, e);
+								continue;
+							}
+							if (attrs.isDirectory()) {
+								subdirs.add(new WalkTask(walk, child, path,
+										attrs.lastModifiedTime().toMillis()));
+							} else if (isMusicFile(child.getFileName()
+									.toString())) {
+								walk.visitor.visitFile(child, attrs);
+								songs++;
+							}
+						}
+					} finally {
+						children.close();
+					}
+					walk.visitor.leaveDirectory(new Directory(path, parent,
+							mtime, songs), false);
+				}
+			} catch (IOException e) {
+				Logger.warn("Failed to list directory " + dir, e);
+			} catch (InterruptedException e) {
+				// unwinds all tasks of this walk
+				throw new CancellationException();
+			}
+
+			invokeAll(subdirs);
+		}
+
+		/**
+		 * Walk a subfolder known from the previous walk
+		 */
+		private void addSubdir(List<WalkTask> subdirs, Path sub) {
+			BasicFileAttributes attrs = null;
+			try {
+				attrs = Files.readAttributes(sub, BasicFileAttributes.class);
+			} catch (IOException e) {
+				// removed since the folder was read
+				Logger.warn("Failed to read " + sub, e);
+				return;
+			}
+			if (attrs.isDirectory()) {
+				subdirs.add(new WalkTask(walk, sub, dir.toString(), attrs
+						.lastModifiedTime().toMillis()));
+			}
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/* This file is part of Wissl - Copyright (C) 2013 Mathieu Schnoor
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.msch.wissl.server;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches music folders for changes between two library scans.
+ * Folders are registered by the indexer as it walks them,
+ * changes are collected until no event is received for a short while,
+ * then given to the library indexer in a single batch.
+ *
+ * @author mathieu.schnoor@gmail.com
+ *
+ */
+final class LibraryWatcher {
+
+	/** changes are sent to the indexer when nothing happened for that long */
+	private static final long QUIET_DELAY = 2000;
+	/** changes are sent anyway after that long, even if events keep coming */
+	private static final long MAX_DELAY = 30000;
+
+	private final WatchService service;
+	/** all registered folders */
+	private final Map<Path, WatchKey> dirs;
+	private final Thread thread;
+	/** only report the first registration failure */
+	private volatile boolean failed = false;
+
+	LibraryWatcher() throws IOException {
+		this.service = FileSystems.getDefault().newWatchService();
+		this.dirs = new ConcurrentHashMap<Path, WatchKey>();
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					watch();
+				} catch (InterruptedException e) {
+					return;
+				} catch (ClosedWatchServiceException e) {
+					return;
+				}
+			}
+		}, "MusicWatcher");
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		this.thread.start();
+	}
+
+	void stop() {
+		this.thread.interrupt();
+		try {
+			this.service.close();
+		} catch (IOException e) {
+			Logger.warn("Failed to close music watcher", e);
+		}
+	}
+
+	/**
+	 * Watch a single folder for changes, does nothing if
+	 * the folder is already watched
+	 * @param dir folder
+	 */
+	void register(File dir) {
+		Path p = dir.toPath();
+		if (dirs.containsKey(p)) {
+			return;
+		}
+		try {
+			dirs.put(p, p.register(service, ENTRY_CREATE, ENTRY_DELETE,
+					ENTRY_MODIFY));
+		} catch (IOException e) {
+			// most likely the system limit of watched folders,
+			// changes in this folder will be found by the next scan
+			if (!failed) {
+				failed = true;
+				Logger.error("Cannot watch folder " + p + ", changes "
+						+ "will be found on next scan only", e);
+			}
+		}
+	}
+
+	/**
+	 * Watch a new folder and all its subfolders
+	 */
+	private void registerAll(Path start) {
+		try {
+			Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir,
+						BasicFileAttributes attrs) throws IOException {
+					register(dir.toFile());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			Logger.warn("Cannot watch folder " + start, e);
+		}
+	}
+
+	private void watch() throws InterruptedException {
+		Set<File> pending = new HashSet<File>();
+		long first = 0;
+
+		while (true) {
+			WatchKey key = null;
+			if (pending.isEmpty()) {
+				key = service.take();
+			} else {
+				long now = System.currentTimeMillis();
+				long wait = Math.min(QUIET_DELAY, first + MAX_DELAY - now);
+				if (wait > 0) {
+					key = service.poll(wait, TimeUnit.MILLISECONDS);
+				}
+				if (key == null) {
+					Library.update(pending);
+					pending = new HashSet<File>();
+					continue;
+				}
+			}
+
+			if (pending.isEmpty()) {
+				first = System.currentTimeMillis();
+			}
+
+			Path dir = (Path) key.watchable();
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW) {
+					// events were lost, rescan everything
+					Logger.warn("Too many changes in music folders, "
+							+ "rescanning library");
+					pending.clear();
+					Library.interrupt();
+					continue;
+				}
+
+				Path child = dir.resolve((Path) event.context());
+				File f = child.toFile();
+				if (event.kind() == ENTRY_DELETE) {
+					if (!dirs.containsKey(child) && !Library.isMusicFile(f)) {
+						continue;
+					}
+				} else if (f.isDirectory()) {
+					if (event.kind() == ENTRY_MODIFY) {
+						// its content changed, children will tell us
+						continue;
+					}
+					registerAll(child);
+				} else if (!Library.isMusicFile(f)) {
+					continue;
+				}
+				pending.add(f);
+			}
+
+			if (!key.reset()) {
+				// folder was deleted or is not accessible anymore
+				dirs.remove(dir);
+				pending.add(dir.toFile());
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/* This file is part of Wissl - Copyright (C) 2013 Mathieu Schnoor
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.msch.wissl.server;
+
+/**
+ * Set of primitive longs, using open addressing with linear probing.
+ * Takes 16 bytes per element at most, against about 80 bytes
+ * for a boxed Long in a HashSet. Not thread safe.
+ *
+ * @author mathieu.schnoor@gmail.com
+ *
+ */
+final class LongSet {
+
+	/** 0 marks empty slots, it is stored apart */
+	private long[] keys;
+	private boolean hasZero = false;
+	private int size = 0;
+	/** table is grown above that many elements */
+	private int threshold;
+
+	LongSet() {
+		this(16);
+	}
+
+	/**
+	 * @param expected number of elements, avoids growing the table
+	 */
+	LongSet(int expected) {
+		int capacity = 16;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		this.keys = new long[capacity];
+		this.threshold = capacity / 2;
+	}
+
+	/**
+	 * @param key any value
+	 * @return false if the set already contained the key
+	 */
+	boolean add(long key) {
+		if (key == 0) {
+			if (hasZero) {
+				return false;
+			}
+			hasZero = true;
+			size++;
+			return true;
+		}
+
+		int mask = keys.length - 1;
+		int i = slot(key) & mask;
+		while (keys[i] != 0) {
+			if (keys[i] == key) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		if (++size > threshold) {
+			grow();
+		}
+		return true;
+	}
+
+	/**
+	 * @param key any value
+	 * @return true if the key was added to the set
+	 */
+	boolean contains(long key) {
+		if (key == 0) {
+			return hasZero;
+		}
+
+		int mask = keys.length - 1;
+		int i = slot(key) & mask;
+		while (keys[i] != 0) {
+			if (keys[i] == key) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void grow() {
+		long[] old = keys;
+		keys = new long[old.length * 2];
+		threshold = keys.length / 2;
+		int mask = keys.length - 1;
+		for (long key : old) {
+			if (key == 0) {
+				continue;
+			}
+			int i = slot(key) & mask;
+			while (keys[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+		}
+	}
+
+	/**
+	 * spreads the high bits of the key, keys are not always well distributed
+	 */
+	private static int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -23,13 +23,12 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.sql.SQLException;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -45,7 +44,9 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 
@@ -54,6 +55,9 @@ import org.codehaus.jettison.json.JSONObject;
 import org.jboss.resteasy.plugins.providers.multipart.InputPart;
 import org.jboss.resteasy.plugins.providers.multipart.MultipartFormDataInput;
 import org.jboss.resteasy.spi.NotFoundException;
+import org.jboss.resteasy.util.CommitHeaderOutputStream;
+import org.jboss.resteasy.util.DateUtil;
+import org.jboss.resteasy.util.DateUtil.DateParseException;
 import org.jboss.resteasy.util.GenericType;
 
 import fr.msch.wissl.common.Config;
@@ -77,6 +81,10 @@ public final class REST {
 	@Context
 	private HttpServletResponse response;
 
+	/** evaluates conditional requests */
+	@Context
+	private Request preconditions;
+
 	@HeaderParam("sessionId")
 	private String sessionIdHeader;
 
@@ -106,6 +114,43 @@ public final class REST {
 		this.response.setHeader("Cache-Control", "no-cache");
 	}
 
+	/**
+	 * @param catalog snapshot the response is made from
+	 * @return ETag of responses made from the snapshot
+	 */
+	private static EntityTag catalogTag(Catalog catalog) {
+		return new EntityTag(Long.toHexString(catalog.getVersion()));
+	}
+
+	/**
+	 * @param catalog snapshot the response would be made from
+	 * @return 304 Not Modified if the client already has the response
+	 * made from this snapshot, or null
+	 */
+	private Response notModified(Catalog catalog) {
+		EntityTag tag = catalogTag(catalog);
+		Response.ResponseBuilder rb = preconditions.evaluatePreconditions(tag);
+		if (rb == null) {
+			return null;
+		}
+		nocache();
+		return rb.tag(tag).build();
+	}
+
+	/**
+	 * @param out body of a streamed response
+	 * @return the servlet output stream once the headers are set,
+	 * so that files can be sent by the container itself, see
+	 * {@link FileSender}
+	 */
+	private OutputStream unwrap(OutputStream out) throws IOException {
+		if (out instanceof CommitHeaderOutputStream) {
+			((CommitHeaderOutputStream) out).commit();
+			return this.response.getOutputStream();
+		}
+		return out;
+	}
+
 	@POST
 	@Path("login")
 	public String login(@FormParam("username") String username,
@@ -442,8 +487,11 @@ public final class REST {
 	@POST
 	@Path("playlist/random")
 	public String randomPlaylist(@FormParam("name") String name,
-			@FormParam("number") int number) throws SQLException,
-			SecurityError, javassist.NotFoundException, ForbiddenException {
+			@FormParam("number") int number,
+			@FormParam("genre") String genre,
+			@FormParam("max_per_artist") int maxPerArtist)
+			throws SQLException, SecurityError, javassist.NotFoundException,
+			ForbiddenException {
 		long t1 = System.nanoTime();
 		String sid = (sessionIdHeader == null ? sessionIdGet : sessionIdHeader);
 		Session sess = Session.check(sid, request.getRemoteAddr(), userAgent);
@@ -459,18 +507,23 @@ public final class REST {
 		if (number > 50)
 			throw new IllegalArgumentException(
 					"Cannot create random playlist that big");
+		if (maxPerArtist < 0)
+			throw new IllegalArgumentException(
+					"Invalid maximum number of songs per artist");
+
+		// the existing playlist is kept when no song matches
+		List<Song> songs = DB.get().getRandomSongs(number, genre,
+				maxPerArtist);
+		if (songs.size() == 0) {
+			throw new IllegalStateException(
+					"There are currently no matching songs in the library");
+		}
 
 		Playlist pl = DB.get().addPlaylist(uid, name);
 		if (pl.songs > 0) {
 			DB.get().clearPlaylist(pl.id, uid);
 		}
 
-		List<Song> songs = DB.get().getRandomSongs(number);
-		if (songs.size() == 0) {
-			throw new IllegalStateException(
-					"There are currently no songs in the library");
-		}
-
 		int[] ids = new int[songs.size()];
 		for (int i = 0; i < songs.size(); i++) {
 			ids[i] = songs.get(i).id;
@@ -552,36 +605,59 @@ public final class REST {
 		log(s, l);
 	}
 
+	@POST
+	@Path("playlist/{playlist_id}/move")
+	public void moveInPlaylist(@PathParam("playlist_id") int playlist_id,
+			@FormParam("song_ids[]") int[] song_ids,
+			@FormParam("position") int position) throws SQLException,
+			SecurityError, ForbiddenException {
+		long l = System.nanoTime();
+		String sid = (sessionIdHeader == null ? sessionIdGet : sessionIdHeader);
+		Session s = Session.check(sid, request.getRemoteAddr(), userAgent);
+		int uid = s.getUserId();
+
+		if (song_ids == null || song_ids.length == 0)
+			throw new IllegalArgumentException("No song ids provided");
+		if (position < 0)
+			throw new IllegalArgumentException("Invalid position: "
+					+ position);
+
+		DB.get().moveSongsInPlaylist(playlist_id, song_ids, position, uid);
+
+		nocache();
+		log(s, l);
+	}
+
 	@GET
 	@Path("playlist/{playlist_id}/songs")
-	public String getPlaylistSongs(@PathParam("playlist_id") int playlist_id)
+	public StreamingOutput getPlaylistSongs(
+			@PathParam("playlist_id") int playlist_id)
 			throws SQLException, SecurityError {
 		long t1 = System.nanoTime();
 		String sid = (sessionIdHeader == null ? sessionIdGet : sessionIdHeader);
 		Session sess = Session.check(sid, request.getRemoteAddr(), userAgent);
 
-		Playlist pl = DB.get().getPlaylist(playlist_id);
-		List<Song> songs = DB.get().getPlaylistSongs(playlist_id);
+		final Playlist pl = DB.get().getPlaylist(playlist_id);
+		final List<Song> songs = DB.get().getPlaylistSongs(playlist_id);
 
 		if (pl == null) {
 			throw new NotFoundException("No such playlist: " + playlist_id);
 		}
 
-		StringBuilder ret = new StringBuilder();
-		ret.append("{\"name\":" + JSONObject.quote(pl.name) + ",");
-		ret.append("\"playlist\":[");
-		for (Iterator<Song> it = songs.iterator(); it.hasNext();) {
-			Song s = it.next();
-			ret.append(s.toJSON());
-			if (it.hasNext()) {
-				ret.append(',');
+		JSONStream ret = new JSONStream() {
+			@Override
+			protected void writeJSON() throws IOException {
+				write("{\"name\":");
+				write(JSONObject.quote(pl.name));
+				write(",\"playlist\":[");
+				writeElements(songs);
+				write("]}");
 			}
-		}
-		ret.append("]}");
+		};
 
 		nocache();
 		log(sess, t1);
-		return ret.toString();
+		return ret;
 	}
 
 	@GET
@@ -679,220 +755,229 @@ public final class REST {
 
 	@GET
 	@Path("artists")
-	public String getArtists() throws SQLException, SecurityError {
+	public Response getArtists() throws SQLException, SecurityError {
 		long l = System.nanoTime();
 		String sid = (sessionIdHeader == null ? sessionIdGet : sessionIdHeader);
 		Session s = Session.check(sid, request.getRemoteAddr(), userAgent);
 
-		List<Artist> artists = DB.get().getArtists();
-		Map<Integer, Map<Integer, String>> artworks = DB.get()
-				.getAlbumArtworks();
+		final Catalog catalog = DB.get().getCatalog();
+		Response notModified = notModified(catalog);
+		if (notModified != null) {
+			log(s, l);
+			return notModified;
+		}
 
-		StringBuilder ret = new StringBuilder();
-		ret.append("{\"artists\":[");
-		for (Iterator<Artist> it = artists.iterator(); it.hasNext();) {
-			Artist ar = it.next();
-
-			ret.append("{\"artist\":");
-			ret.append(ar.toJSON());
-			ret.append(",\"artworks\":[");
-			Map<Integer, String> al = artworks.get(ar.id);
-			if (al != null) {
-
-				Iterator<Entry<Integer, String>> it2 = al.entrySet().iterator();
-				while (it2.hasNext()) {
-					Entry<Integer, String> entry = it2.next();
-					int album_id = entry.getKey();
-					String artwork_id = entry.getValue();
-
-					ret.append("{\"album\":" + album_id + ",");
-					ret.append("\"id\":" + JSONObject.quote(artwork_id));
-					ret.append("}");
-					if (it2.hasNext()) {
-						ret.append(',');
+		final List<Artist> artists = catalog.getArtists();
+
+		JSONStream ret = new JSONStream() {
+			@Override
+			protected void writeJSON() throws IOException {
+				write("{\"artists\":[");
+				for (Iterator<Artist> it = artists.iterator(); it.hasNext();) {
+					Artist ar = it.next();
+
+					write("{\"artist\":");
+					writeArtist(ar, catalog);
+					write(",\"artworks\":[");
+					Map<Integer, String> al = catalog.getArtworks(ar.id);
+					Iterator<Entry<Integer, String>> it2 = al.entrySet()
+							.iterator();
+					while (it2.hasNext()) {
+						Entry<Integer, String> entry = it2.next();
+						write("{\"album\":");
+						write(entry.getKey().toString());
+						write(",\"id\":");
+						write(JSONObject.quote(entry.getValue()));
+						write("}");
+						if (it2.hasNext()) {
+							write(",");
+						}
+					}
+					write("]}");
+					if (it.hasNext()) {
+						write(",");
 					}
 				}
+				write("]}");
 			}
-			ret.append("]}");
-			if (it.hasNext()) {
-				ret.append(',');
-			}
-		}
-		ret.append("]}");
+		};
 
 		nocache();
 		log(s, l);
-		return ret.toString();
+		return Response.ok(ret).tag(catalogTag(catalog)).build();
 	}
 
 	@GET
 	@Path("albums/{artist_id}")
-	public String getAlbums(@PathParam("artist_id") int artist_id)
+	public Response getAlbums(@PathParam("artist_id") int artist_id)
 			throws SQLException, SecurityError {
 		long t1 = System.nanoTime();
 		String sid = (sessionIdHeader == null ? sessionIdGet : sessionIdHeader);
 		Session sess = Session.check(sid, request.getRemoteAddr(), userAgent);
 
-		Artist artist = DB.get().getArtist(artist_id);
+		final Catalog catalog = DB.get().getCatalog();
+		Response notModified = notModified(catalog);
+		if (notModified != null) {
+			log(sess, t1);
+			return notModified;
+		}
+
+		final Artist artist = catalog.getArtist(artist_id);
 		if (artist == null) {
 			throw new NotFoundException("Cannot find artist " + artist_id);
 		}
-		List<Album> albums = DB.get().getAlbums(artist_id);
+		final List<Album> albums = catalog.getAlbums(artist_id);
 
-		StringBuilder ret = new StringBuilder();
-		ret.append("{\"artist\":");
-		ret.append(artist.toJSON());
-		ret.append(",\"albums\":[");
-		for (Iterator<Album> it = albums.iterator(); it.hasNext();) {
-			Album al = it.next();
-			ret.append(al.toJSON());
-			if (it.hasNext()) {
-				ret.append(',');
+		JSONStream ret = new JSONStream() {
+			@Override
+			protected void writeJSON() throws IOException {
+				write("{\"artist\":");
+				writeArtist(artist, catalog);
+				write(",\"albums\":[");
+				writeAlbums(albums, catalog);
+				write("]}");
 			}
-		}
-		ret.append("]}");
+		};
 
 		nocache();
 		log(sess, t1);
-		return ret.toString();
+		return Response.ok(ret).tag(catalogTag(catalog)).build();
 	}
 
 	@GET
 	@Path("recent/{number}")
-	public String getRecent(@PathParam("number") int number)
+	public Response getRecent(@PathParam("number") int number)
 			throws SQLException, SecurityError {
 		long t1 = System.nanoTime();
 		String sid = (sessionIdHeader == null ? sessionIdGet : sessionIdHeader);
 		Session sess = Session.check(sid, request.getRemoteAddr(), userAgent);
 
-		List<Album> albums = DB.get().getLatestAlbums(number);
-		List<Artist> artists = DB.get().getLatestArtists(number);
-
-		StringBuilder ret = new StringBuilder();
-		ret.append("{\"albums\":[");
-		for (Iterator<Album> it = albums.iterator(); it.hasNext();) {
-			Album al = it.next();
-			ret.append(al.toJSON());
-			if (it.hasNext()) {
-				ret.append(',');
-			}
-		}
-		ret.append("],\"artists\":[");
-		for (Iterator<Artist> it = artists.iterator(); it.hasNext();) {
-			Artist al = it.next();
-			ret.append(al.toJSON());
-			if (it.hasNext()) {
-				ret.append(',');
-			}
+		final Catalog catalog = DB.get().getCatalog();
+		Response notModified = notModified(catalog);
+		if (notModified != null) {
+			log(sess, t1);
+			return notModified;
 		}
 
-		ret.append("]}");
+		final List<Album> albums = catalog.getLatestAlbums(number);
+		final List<Artist> artists = catalog.getLatestArtists(number);
+
+		JSONStream ret = new JSONStream() {
+			@Override
+			protected void writeJSON() throws IOException {
+				write("{\"albums\":[");
+				writeAlbums(albums, catalog);
+				write("],\"artists\":[");
+				writeArtists(artists, catalog);
+				write("]}");
+			}
+		};
 
 		nocache();
 		log(sess, t1);
-		return ret.toString();
+		return Response.ok(ret).tag(catalogTag(catalog)).build();
 	}
 
 	@GET
 	@Path("songs/{album_id}")
-	public String getSongs(@PathParam("album_id") int album_id)
+	public Response getSongs(@PathParam("album_id") int album_id)
 			throws SQLException, SecurityError {
 		long t1 = System.nanoTime();
 		String sid = (sessionIdHeader == null ? sessionIdGet : sessionIdHeader);
 		Session sess = Session.check(sid, request.getRemoteAddr(), userAgent);
 
-		List<Song> songs = DB.get().getSongs(album_id);
-		Album album = DB.get().getAlbum(album_id);
+		final Catalog catalog = DB.get().getCatalog();
+		Response notModified = notModified(catalog);
+		if (notModified != null) {
+			log(sess, t1);
+			return notModified;
+		}
+
+		final Album album = catalog.getAlbum(album_id);
 		if (album == null) {
 			throw new NotFoundException("Cannot find album " + album_id);
 		}
-		Artist artist = DB.get().getArtist(album.artist_id);
+		final List<Song> songs = catalog.getSongs(album_id);
+		final Artist artist = catalog.getArtist(album.artist_id);
 
-		StringBuilder ret = new StringBuilder();
-		ret.append("{\"artist\":" + artist.toJSON() + ",");
-		ret.append("\"album\":" + album.toJSON() + ",");
-		ret.append("\"songs\":[");
-		for (Iterator<Song> it = songs.iterator(); it.hasNext();) {
-			Song s = it.next();
-			ret.append(s.toJSON());
-			if (it.hasNext()) {
-				ret.append(',');
+		JSONStream ret = new JSONStream() {
+			@Override
+			protected void writeJSON() throws IOException {
+				write("{\"artist\":");
+				writeArtist(artist, catalog);
+				write(",\"album\":");
+				writeAlbum(album, catalog);
+				write(",\"songs\":[");
+				writeSongs(songs, catalog);
+				write("]}");
 			}
-		}
-		ret.append("]}");
+		};
 
 		nocache();
 		log(sess, t1);
-		return ret.toString();
+		return Response.ok(ret).tag(catalogTag(catalog)).build();
 	}
 
 	@GET
 	@Path("song/{song_id}")
-	public String getSong(@PathParam("song_id") final int song_id)
+	public Response getSong(@PathParam("song_id") final int song_id)
 			throws SQLException, SecurityError {
 		long t1 = System.nanoTime();
 		String sid = (sessionIdHeader == null ? sessionIdGet : sessionIdHeader);
 		Session sess = Session.check(sid, request.getRemoteAddr(), userAgent);
 
-		Song song = DB.get().getSong(song_id);
+		Catalog catalog = DB.get().getCatalog();
+		Response notModified = notModified(catalog);
+		if (notModified != null) {
+			log(sess, t1);
+			return notModified;
+		}
+
+		Song song = catalog.getSong(song_id);
 		if (song == null) {
 			throw new NotFoundException("Cannot find song " + song_id);
 		}
-		Album album = DB.get().getAlbum(song.album_id);
-		Artist artist = DB.get().getArtist(album.artist_id);
+		Album album = catalog.getAlbum(song.album_id);
+		Artist artist = catalog.getArtist(album.artist_id);
 
 		StringBuilder ret = new StringBuilder();
-		ret.append("{\"artist\":" + artist.toJSON() + ",");
-		ret.append("\"album\":" + album.toJSON() + ",");
-		ret.append("\"song\":" + song.toJSON() + "}");
+		ret.append("{\"artist\":").append(artist.toJSON());
+		ret.append(",\"album\":").append(album.toJSON());
+		ret.append(",\"song\":").append(song.toJSON()).append('}');
 
 		nocache();
 		log(sess, t1);
-		return ret.toString();
+		return Response.ok(ret.toString()).tag(catalogTag(catalog)).build();
 	}
 
 	@GET
 	@Path("search/{query}")
-	public String search(@PathParam("query") final String query)
+	public StreamingOutput search(@PathParam("query") final String query)
 			throws SQLException, SecurityError {
 		long t1 = System.nanoTime();
 		String sid = (sessionIdHeader == null ? sessionIdGet : sessionIdHeader);
 		Session sess = Session.check(sid, request.getRemoteAddr(), userAgent);
 
-		StringBuilder ret = new StringBuilder();
-
-		List<Artist> artists = DB.get().searchArtist(query, 20);
-		ret.append("{\"artists\":[");
-		for (Iterator<Artist> it = artists.iterator(); it.hasNext();) {
-			Artist ar = it.next();
-			ret.append(ar.toJSON());
-			if (it.hasNext())
-				ret.append(',');
-		}
-
-		List<Album> albums = DB.get().searchAlbum(query, 20);
-		ret.append("],\"albums\":[");
-		for (Iterator<Album> it = albums.iterator(); it.hasNext();) {
-			Album a = it.next();
-			ret.append(a.toJSON());
-			if (it.hasNext())
-				ret.append(',');
-		}
+		final List<Artist> artists = DB.get().searchArtist(query, 20);
+		final List<Album> albums = DB.get().searchAlbum(query, 20);
+		final List<Song> songs = DB.get().searchSong(query, 20);
 
-		List<Song> songs = DB.get().searchSong(query, 20);
-		ret.append("],\"songs\":[");
-		for (Iterator<Song> it = songs.iterator(); it.hasNext();) {
-			Song s = it.next();
-			ret.append(s.toJSON());
-			if (it.hasNext())
-				ret.append(',');
-		}
-
-		ret.append("]}");
+		JSONStream ret = new JSONStream() {
+			@Override
+			protected void writeJSON() throws IOException {
+				write("{\"artists\":[");
+				writeElements(artists);
+				write("],\"albums\":[");
+				writeElements(albums);
+				write("],\"songs\":[");
+				writeElements(songs);
+				write("]}");
+			}
+		};
 
 		this.response.setHeader("Cache-Control", "max-age=60, must-revalidate");
 		log(sess, t1);
-		return ret.toString();
+		return ret;
 	}
 
 	@GET
@@ -905,61 +990,13 @@ public final class REST {
 		final Session s = Session
 				.check(sid, request.getRemoteAddr(), userAgent);
 
-		s.setLastPlayedSong(DB.get().getSong(song_id));
+		s.setLastPlayedSong(DB.get().getCatalog().getSong(song_id));
 
 		final String filePath = DB.get().getSongFilePath(song_id);
-		final File f = new File(filePath);
-
-		// check the value for the 'range' http header, which
-		// indicates when the client is seeking in the middle of a song
-		int _startRange = 0;
-		if (range != null) {
-			Pattern pat = Pattern.compile("bytes=([0-9]+)-([0-9]*)");
-			Matcher mat = pat.matcher(range);
-			if (mat.matches()) {
-				if (mat.group(1) != null) {
-					_startRange = Integer.parseInt(mat.group(1));
-				}
-			}
+		if (filePath == null) {
+			throw new NotFoundException("No song " + song_id);
 		}
-		final long startRange = _startRange;
-		final long endRange = f.length() - 1;
-		final String contentRange = "bytes " + startRange + "-" + endRange
-				+ "/" + f.length();
-
-		// this StreamingOutput object gives us a way to write the response to a
-		// Stream,
-		// which allows reading the file chunk by chunk to avoid having it all
-		// in memory
-		StreamingOutput stream = new StreamingOutput() {
-			@Override
-			public void write(OutputStream out) throws IOException,
-					WebApplicationException {
-				int totalBytes = 0;
-				InputStream in = new FileInputStream(f);
-				byte[] bytes = new byte[8192];
-				int bytesRead;
-
-				try {
-					in.skip(startRange);
-					while ((bytesRead = in.read(bytes)) != -1) {
-						totalBytes += bytesRead;
-						out.write(bytes, 0, bytesRead);
-					}
-				} catch (Throwable t) {
-					return;
-				} finally {
-					RuntimeStats.get().downloaded.addAndGet(totalBytes);
-					try {
-						DB.get().updateDownloadedBytes(s.getUserId(),
-								totalBytes);
-					} catch (SQLException e) {
-						Logger.error("Failed to update user stats", e);
-					}
-					in.close();
-				}
-			}
-		};
+		final File f = new File(filePath);
 
 		String contentType = "*/*";
 		if (filePath.endsWith("mp3")) {
@@ -976,73 +1013,143 @@ public final class REST {
 			contentType = "audio/wav";
 		}
 
-		int status = 200;
-		if (startRange > 0) {
-			// seeking: HTTP 206 partial content
-			status = 206;
-		}
-
 		log(s, t1);
 
-		return Response.status(status) //
-				.type(contentType) //
-				.header("Content-Length", f.length() - startRange) //
-				.header("Accept-Ranges", "bytes") //
-				.header("Content-Range", contentRange) //
-				.header("Cache-Control", "max-age=86400, must-revalidate") //
-				.entity(stream) //
-				.build();
+		return sendFile(f, range, contentType,
+				"max-age=86400, must-revalidate", s);
 	}
 
-	@GET
-	@Path("art/{album_id}")
-	public Response getAlbumArtwork(@PathParam("album_id") int album_id)
-			throws SQLException, SecurityError {
-
-		final String art = DB.get().getAlbumArtwork(album_id);
-		if (art == null || art.trim().length() == 0) {
-			throw new NotFoundException("Not artwork for album " + album_id);
+	/**
+	 * Answer the GET request of a file, either whole or the single range
+	 * requested by the 'Range' header, unless the client already has it.
+	 * The ETag is made from the length and modification date of the
+	 * file, so that it changes when the file is replaced.
+	 * @param f file to send
+	 * @param range value of the 'Range' header, or null
+	 * @param contentType type of the file
+	 * @param cacheControl value of the 'Cache-Control' header
+	 * @param s session of the user, to add the bytes sent to the user
+	 * statistics, or null
+	 * @return response with status 200, 206, 304, 412 or 416
+	 */
+	private Response sendFile(final File f, String range,
+			String contentType, String cacheControl, final Session s) {
+		final long length = f.length();
+		// HTTP dates have a precision of one second
+		Date lastModified = new Date(f.lastModified() / 1000 * 1000);
+		EntityTag tag = new EntityTag(Long.toHexString(length) + "-"
+				+ Long.toHexString(lastModified.getTime()));
+
+		Response.ResponseBuilder rb = preconditions.evaluatePreconditions(
+				lastModified, tag);
+		if (rb != null) {
+			// 304 Not Modified, or 412 Precondition Failed
+			return rb.tag(tag).lastModified(lastModified)
+					.header("Cache-Control", cacheControl).build();
 		}
 
-		final File f = new File(art);
+		// the range applies to the file the client has, if it is this one
+		String ifRange = request.getHeader("If-Range");
+		if (range != null && ifRange != null
+				&& !ifRange(ifRange, tag, lastModified)) {
+			range = null;
+		}
 
-		if (!f.exists()) {
-			throw new NotFoundException("Not artwork for album " + album_id);
+		final ByteRange br;
+		try {
+			br = ByteRange.parse(range, length);
+		} catch (IllegalStateException e) {
+			return Response.status(416) //
+					.header("Content-Range", "bytes */" + length) //
+					.header("Accept-Ranges", "bytes") //
+					.build();
 		}
+		final long start = (br == null ? 0 : br.start);
+		final long count = (br == null ? length : br.length());
 
+		// this StreamingOutput object gives us a way to write the response to a
+		// Stream, the file is sent without having it all in memory
 		StreamingOutput stream = new StreamingOutput() {
 			@Override
 			public void write(OutputStream out) throws IOException,
 					WebApplicationException {
-				InputStream in = new FileInputStream(f);
-				byte[] bytes = new byte[8192];
-				int bytesRead;
-				int totalBytes = 0;
-
+				long totalBytes = 0;
 				try {
-					while ((bytesRead = in.read(bytes)) != -1) {
-						totalBytes += bytesRead;
-						out.write(bytes, 0, bytesRead);
-					}
+					totalBytes = FileSender.send(f, start, count, unwrap(out));
 				} catch (Throwable t) {
 					return;
 				} finally {
 					RuntimeStats.get().downloaded.addAndGet(totalBytes);
-					in.close();
+					if (s != null) {
+						try {
+							DB.get().updateDownloadedBytes(s.getUserId(),
+									totalBytes);
+						} catch (SQLException e) {
+							Logger.error("Failed to update user stats", e);
+						}
+					}
 				}
 			}
 		};
 
-		Logger.debug("GET art/" + album_id + " " + request.getRemoteAddr());
-		return Response.status(200) //
-				.type("image/jpeg") //
-				.header("Content-Length", f.length()) //
+		// seeking: HTTP 206 partial content
+		rb = Response.status(br == null ? 200 : 206);
+		if (br != null) {
+			rb.header("Content-Range", br.toContentRange());
+		}
+		return rb.type(contentType) //
+				.header("Content-Length", count) //
 				.header("Accept-Ranges", "bytes") //
-				.header("Cache-Control", "max-age=86400, public") //
+				.header("Cache-Control", cacheControl) //
+				.tag(tag) //
+				.lastModified(lastModified) //
 				.entity(stream) //
 				.build();
 	}
 
+	/**
+	 * @param ifRange value of the 'If-Range' header
+	 * @return true if it designates the current version of the file,
+	 * by its strong ETag or its exact modification date
+	 */
+	private static boolean ifRange(String ifRange, EntityTag tag,
+			Date lastModified) {
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"")) {
+			return ifRange.equals("\"" + tag.getValue() + "\"");
+		} else if (ifRange.startsWith("W/")) {
+			// weak tags never match
+			return false;
+		}
+		try {
+			return DateUtil.parseDate(ifRange).getTime() == lastModified
+					.getTime();
+		} catch (DateParseException e) {
+			return false;
+		}
+	}
+
+	@GET
+	@Path("art/{album_id}")
+	public Response getAlbumArtwork(@PathParam("album_id") int album_id,
+			@HeaderParam("range") String range) throws SQLException,
+			SecurityError {
+
+		final String art = DB.get().getAlbumArtwork(album_id);
+		if (art == null || art.trim().length() == 0) {
+			throw new NotFoundException("Not artwork for album " + album_id);
+		}
+
+		final File f = new File(art);
+
+		if (!f.exists()) {
+			throw new NotFoundException("Not artwork for album " + album_id);
+		}
+
+		Logger.debug("GET art/" + album_id + " " + request.getRemoteAddr());
+		return sendFile(f, range, "image/jpeg", "max-age=86400, public", null);
+	}
+
 	@GET
 	@Path("folders")
 	public String getMusicFolders() throws SecurityError, SQLException {
@@ -1223,7 +1330,7 @@ public final class REST {
 		Session s = Session
 				.check(sid, request.getRemoteAddr(), userAgent, true);
 
-		Library.interrupt();
+		Library.rescan();
 
 		log(s, l1);
 	}
@@ -1403,14 +1510,15 @@ public final class REST {
 
 	@GET
 	@Path("stats")
-	public String getStats() throws SecurityError {
+	public String getStats() throws SecurityError, SQLException {
 		long l1 = System.nanoTime();
 		String sid = (sessionIdHeader == null ? sessionIdGet : sessionIdHeader);
 		Session s = Session.check(sid, request.getRemoteAddr(), userAgent,
 				false);
 		StringBuilder sb = new StringBuilder();
 
-		sb.append("{\"stats\":" + RuntimeStats.get().toJSON() + "}");
+		sb.append("{\"stats\":" + RuntimeStats.get().toJSON() + ",");
+		sb.append("\"db\":" + DB.get().getPoolStatsAsJSON() + "}");
 
 		nocache();
 		log(s, l1);
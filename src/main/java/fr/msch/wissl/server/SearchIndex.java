@@ -0,0 +1,247 @@
+/* This file is part of Wissl - Copyright (C) 2013 Mathieu Schnoor
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.msch.wissl.server;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable inverted index of names, searched by word prefix.
+ * <p>
+ * Names are split in lower case words without accents. A query matches
+ * an entry when each of its words is the prefix of a word of the entry,
+ * ie 'roll st' matches 'The Rolling Stones'. Entries matching whole words
+ * rank first, then entries with fewer words.
+ * <p>
+ * Only words and entry ids are kept in memory, about 10 bytes per word of
+ * each entry plus the distinct words themselves.
+ *
+ * @author mathieu.schnoor@gmail.com
+ *
+ */
+final class SearchIndex {
+
+	/** longer words are truncated */
+	private static final int MAX_WORD = 32;
+	/** words of a query after that many are ignored */
+	private static final int MAX_QUERY = 16;
+
+	/** all distinct words, sorted */
+	private final String[] words;
+	/** for each word, positions of the entries containing it, ascending */
+	private final int[][] postings;
+	/** unique id of each entry */
+	private final int[] ids;
+	/** number of words of each entry, capped to 127 */
+	private final byte[] sizes;
+
+	/**
+	 * Collects entries, not thread safe
+	 */
+	static final class Builder {
+		/** positions of the entries containing a word */
+		private static final class Posting {
+			int[] entries = new int[2];
+			int count = 0;
+		}
+
+		private final Map<String, Posting> postings = new HashMap<String, Posting>();
+		private int[] ids = new int[1024];
+		private byte[] sizes = new byte[1024];
+		private int count = 0;
+
+		/**
+		 * @param id unique id of the entry
+		 * @param name searchable name of the entry
+		 */
+		void add(int id, String name) {
+			if (count == ids.length) {
+				ids = Arrays.copyOf(ids, count * 2);
+				sizes = Arrays.copyOf(sizes, count * 2);
+			}
+			List<String> w = words(name);
+			ids[count] = id;
+			sizes[count] = (byte) Math.min(w.size(), 127);
+			for (String word : w) {
+				Posting p = postings.get(word);
+				if (p == null) {
+					p = new Posting();
+					postings.put(word, p);
+				} else if (p.entries[p.count - 1] == count) {
+					// same word twice in this entry
+					continue;
+				} else if (p.count == p.entries.length) {
+					p.entries = Arrays.copyOf(p.entries, p.count * 2);
+				}
+				p.entries[p.count++] = count;
+			}
+			count++;
+		}
+
+		SearchIndex build() {
+			String[] words = postings.keySet().toArray(new String[0]);
+			Arrays.sort(words);
+			int[][] p = new int[words.length][];
+			for (int i = 0; i < words.length; i++) {
+				Posting posting = postings.get(words[i]);
+				p[i] = Arrays.copyOf(posting.entries, posting.count);
+			}
+			return new SearchIndex(words, p, Arrays.copyOf(ids, count),
+					Arrays.copyOf(sizes, count));
+		}
+	}
+
+	private SearchIndex(String[] words, int[][] postings, int[] ids,
+			byte[] sizes) {
+		this.words = words;
+		this.postings = postings;
+		this.ids = ids;
+		this.sizes = sizes;
+	}
+
+	/**
+	 * @param query one or several words, or beginning of words
+	 * @param maxResults maximum number of results
+	 * @return ids of the best matching entries, best first
+	 */
+	int[] search(String query, int maxResults) {
+		List<String> q = words(query);
+		if (q.isEmpty() || maxResults <= 0) {
+			return new int[0];
+		}
+		if (q.size() > MAX_QUERY) {
+			q = q.subList(0, MAX_QUERY);
+		}
+
+		// number of query words matched by each entry, and their score
+		byte[] hits = new byte[ids.length];
+		int[] scores = new int[ids.length];
+		for (int i = 0; i < q.size(); i++) {
+			String prefix = q.get(i);
+			int w = Arrays.binarySearch(words, prefix);
+			boolean exact = (w >= 0);
+			if (w < 0) {
+				w = -w - 1;
+			}
+			// the exact word, if any, comes first
+			for (; w < words.length && words[w].startsWith(prefix); w++) {
+				for (int e : postings[w]) {
+					if (hits[e] == i) {
+						hits[e] = (byte) (i + 1);
+						scores[e] += (exact ? 2 : 1);
+					}
+				}
+				exact = false;
+			}
+		}
+
+		// keep the best entries in a min heap of sort keys
+		long[] heap = new long[maxResults];
+		int n = 0;
+		for (int e = 0; e < ids.length; e++) {
+			if (hits[e] != q.size()) {
+				continue;
+			}
+			// higher score, then fewer words, then first added
+			long key = ((long) scores[e] << 40)
+					| ((long) (127 - sizes[e]) << 32)
+					| (Integer.MAX_VALUE - e);
+			if (n < maxResults) {
+				heap[n] = key;
+				siftUp(heap, n++);
+			} else if (key > heap[0]) {
+				heap[0] = key;
+				siftDown(heap, n);
+			}
+		}
+
+		long[] best = Arrays.copyOf(heap, n);
+		Arrays.sort(best);
+		int[] ret = new int[n];
+		for (int i = 0; i < n; i++) {
+			ret[i] = ids[Integer.MAX_VALUE - (int) best[n - 1 - i]];
+		}
+		return ret;
+	}
+
+	private static void siftUp(long[] heap, int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (heap[parent] <= heap[i]) {
+				return;
+			}
+			long tmp = heap[parent];
+			heap[parent] = heap[i];
+			heap[i] = tmp;
+			i = parent;
+		}
+	}
+
+	private static void siftDown(long[] heap, int n) {
+		int i = 0;
+		while (true) {
+			int min = i;
+			int l = 2 * i + 1, r = l + 1;
+			if (l < n && heap[l] < heap[min]) {
+				min = l;
+			}
+			if (r < n && heap[r] < heap[min]) {
+				min = r;
+			}
+			if (min == i) {
+				return;
+			}
+			long tmp = heap[min];
+			heap[min] = heap[i];
+			heap[i] = tmp;
+			i = min;
+		}
+	}
+
+	/**
+	 * @return lower case words of a name, without accents nor apostrophes
+	 */
+	static List<String> words(String name) {
+		String s = Normalizer.normalize(name, Normalizer.Form.NFD)
+				.toLowerCase(Locale.ENGLISH);
+		List<String> ret = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (Character.isLetterOrDigit(c)) {
+				if (sb.length() < MAX_WORD) {
+					sb.append(c);
+				}
+			} else if (c == '\'' || c == '\u2019'
+					|| Character.getType(c) == Character.NON_SPACING_MARK) {
+				// "don't" is "dont", accents are dropped
+				continue;
+			} else if (sb.length() > 0) {
+				ret.add(sb.toString());
+				sb.setLength(0);
+			}
+		}
+		if (sb.length() > 0) {
+			ret.add(sb.toString());
+		}
+		return ret;
+	}
+}
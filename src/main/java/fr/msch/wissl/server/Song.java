@@ -50,8 +50,12 @@ final class Song implements JSON {
 
 	/** absolute file path on the local filesystem */
 	public String filepath = "";
-	/** MD5 hash of filePath */
-	public String hash = "";
+	/** 64 bits fingerprint of filepath */
+	public long hash = 0;
+	/** file size in bytes when indexed */
+	public long file_size = 0;
+	/** file last modification time when indexed */
+	public long file_mtime = 0;
 
 	/** album containing this song */
 	public Album album = null;
@@ -82,17 +86,16 @@ final class Song implements JSON {
 	@Override
 	public String toJSON() {
 		StringBuilder str = new StringBuilder();
-		str.append('{');
-		str.append("\"id\":" + id + ",");
-		str.append("\"title\": " + JSONObject.quote(title) + ",");
-		str.append("\"position\":" + position + ",");
-		str.append("\"duration\":" + duration + ",");
-		str.append("\"format\":" + JSONObject.quote(format) + ",");
-		str.append("\"disc_no\":" + disc_no + ",");
-		str.append("\"album_id\":" + album_id + ",");
-		str.append("\"album_name\": " + JSONObject.quote(album_name) + ",");
-		str.append("\"artist_id\":" + artist_id + ",");
-		str.append("\"artist_name\": " + JSONObject.quote(artist_name));
+		str.append("{\"id\":").append(id);
+		str.append(",\"title\":").append(JSONObject.quote(title));
+		str.append(",\"position\":").append(position);
+		str.append(",\"duration\":").append(duration);
+		str.append(",\"format\":").append(JSONObject.quote(format));
+		str.append(",\"disc_no\":").append(disc_no);
+		str.append(",\"album_id\":").append(album_id);
+		str.append(",\"album_name\":").append(JSONObject.quote(album_name));
+		str.append(",\"artist_id\":").append(artist_id);
+		str.append(",\"artist_name\":").append(JSONObject.quote(artist_name));
 		str.append('}');
 		return str.toString();
 	}
@@ -0,0 +1,142 @@
+/* This file is part of Wissl - Copyright (C) 2013 Mathieu Schnoor
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.msch.wissl.server;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.msch.wissl.common.Config;
+
+/**
+ * Load test of the DB connection pool, with and without statement cache.
+ * Several threads stream songs and read playlists concurrently:
+ * getSongFilePath, getPlaylists and getPlaylistSongs, then the throughput
+ * is printed along with the pool statistics. Browsing the library is
+ * served by the {@link Catalog} and does not query the DB.
+ * Not run with the tests, launch manually:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=fr.msch.wissl.server.DBPoolBenchmark \
+ *   -Dexec.args="[threads] [seconds]"
+ * </pre>
+ *
+ * @author mathieu.schnoor@gmail.com
+ *
+ */
+public final class DBPoolBenchmark {
+
+	private static final int SONGS = 10000;
+	private static final int PLAYLISTS = 10;
+	private static final int PLAYLIST_SONGS = 100;
+
+	public static void main(String[] args) throws Exception {
+		int threads = (args.length > 0 ? Integer.parseInt(args[0]) : 8);
+		int seconds = (args.length > 1 ? Integer.parseInt(args[1]) : 10);
+
+		System.setProperty("wsl.db.clean", "true");
+		System.setProperty("wsl.db.path", "$TMP/wsl-bench/H2");
+		System.setProperty("wsl.music.path", "");
+		System.setProperty("wsl.log.file.enabled", "false");
+		System.setProperty("wsl.log.stdout.enabled", "false");
+		File conf = new File("src/main/webapp/config.ini");
+		System.setProperty("wsl.config", conf.getAbsolutePath());
+
+		System.out.println(threads + " threads, " + seconds + "s each");
+		for (String statements : new String[] { "0", "100" }) {
+			System.setProperty("wsl.db.statements", statements);
+			Config.create(new File("src/main/webapp").getAbsolutePath());
+			Logger.create();
+
+			final H2DB db = new H2DB(Config.getDbPath(), true);
+			try {
+				H2DBBenchmark.addSongs(db, SONGS);
+				int uid = addPlaylists(db);
+				long count = run(db, uid, threads, seconds);
+				System.out.println("statements per connection: "
+						+ statements + ", " + (count / seconds)
+						+ " requests/s, pool: " + db.getPoolStatsAsJSON());
+			} finally {
+				db.close();
+			}
+		}
+	}
+
+	/**
+	 * Create a user with {@link #PLAYLISTS} playlists of random songs
+	 * @return id of the user
+	 */
+	private static int addPlaylists(DB db) throws Exception {
+		User user = new User();
+		user.username = "bench";
+		user.password = "benchmark".getBytes();
+		user.hashPassword();
+		user.auth = 2;
+		int uid = db.addUser(user);
+
+		Random rand = new Random(0);
+		for (int i = 0; i < PLAYLISTS; i++) {
+			Playlist pl = db.addPlaylist(uid, "playlist " + i);
+			int[] ids = new int[PLAYLIST_SONGS];
+			for (int j = 0; j < ids.length; j++) {
+				ids[j] = rand.nextInt(SONGS) + 1;
+			}
+			db.addSongsToPlaylist(pl.id, ids, uid);
+		}
+		return uid;
+	}
+
+	/**
+	 * @return number of requests run by all threads
+	 */
+	private static long run(final DB db, final int uid, int threads,
+			int seconds) throws Exception {
+		final List<Playlist> playlists = db.getPlaylists(uid);
+		final AtomicLong count = new AtomicLong();
+		final long end = System.currentTimeMillis() + seconds * 1000L;
+		Thread[] t = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final Random rand = new Random(i);
+			t[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (System.currentTimeMillis() < end) {
+							int n = rand.nextInt(SONGS);
+							// mostly streaming, some playlists
+							db.getSongFilePath(n + 1);
+							if (n % 10 == 0) {
+								db.getPlaylists(uid);
+							} else if (n % 10 == 1) {
+								db.getPlaylistSongs(playlists.get(
+										n % playlists.size()).id);
+							}
+							count.incrementAndGet();
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			t[i].start();
+		}
+		for (Thread thread : t) {
+			thread.join();
+		}
+		return count.get();
+	}
+}
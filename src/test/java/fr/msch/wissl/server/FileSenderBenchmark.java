@@ -0,0 +1,197 @@
+/* This file is part of Wissl - Copyright (C) 2013 Mathieu Schnoor
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.msch.wissl.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import fr.msch.wissl.common.Config;
+
+/**
+ * Compares the two ways of streaming songs: copying the file through an
+ * 8 KB buffer, as done before, and {@link FileSender}. An embedded Jetty
+ * serves a song sized file, several clients download it concurrently,
+ * then the throughput and the process CPU time per stream are printed.
+ * Clients run in the same process, their CPU time is the same for both.
+ * Not run with the tests, launch manually:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=fr.msch.wissl.server.FileSenderBenchmark \
+ *   -Dexec.args="[clients] [streams per client] [file MB]"
+ * </pre>
+ *
+ * @author mathieu.schnoor@gmail.com
+ *
+ */
+public final class FileSenderBenchmark {
+
+	private static final int PORT = 8899;
+
+	public static void main(String[] args) throws Exception {
+		int clients = (args.length > 0 ? Integer.parseInt(args[0]) : 16);
+		int streams = (args.length > 1 ? Integer.parseInt(args[1]) : 20);
+		int megabytes = (args.length > 2 ? Integer.parseInt(args[2]) : 8);
+
+		System.setProperty("wsl.log.file.enabled", "false");
+		System.setProperty("wsl.log.stdout.enabled", "false");
+		File conf = new File("src/main/webapp/config.ini");
+		System.setProperty("wsl.config", conf.getAbsolutePath());
+		Config.create(new File("src/main/webapp").getAbsolutePath());
+		Logger.create();
+
+		final File song = File.createTempFile("wsl-bench", ".mp3");
+		song.deleteOnExit();
+		byte[] bytes = new byte[1024 * 1024];
+		new Random(0).nextBytes(bytes);
+		RandomAccessFile raf = new RandomAccessFile(song, "rw");
+		for (int i = 0; i < megabytes; i++) {
+			raf.write(bytes);
+		}
+		raf.close();
+
+		Server server = new Server(PORT);
+		ServletContextHandler context = new ServletContextHandler();
+		context.setContextPath("/");
+		context.addServlet(new ServletHolder(new HttpServlet() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void doGet(HttpServletRequest req,
+					HttpServletResponse resp) throws IOException {
+				resp.setContentType("audio/mpeg");
+				resp.setHeader("Content-Length", "" + song.length());
+				InputStream in = new FileInputStream(song);
+				OutputStream out = resp.getOutputStream();
+				byte[] buf = new byte[8192];
+				int read;
+				try {
+					while ((read = in.read(buf)) != -1) {
+						out.write(buf, 0, read);
+					}
+				} finally {
+					in.close();
+				}
+			}
+		}), "/copy");
+		context.addServlet(new ServletHolder(new HttpServlet() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void doGet(HttpServletRequest req,
+					HttpServletResponse resp) throws IOException {
+				resp.setContentType("audio/mpeg");
+				resp.setHeader("Content-Length", "" + song.length());
+				FileSender.send(song, 0, song.length(),
+						resp.getOutputStream());
+			}
+		}), "/send");
+		server.setHandler(context);
+		server.start();
+
+		System.out.println(clients + " clients, " + streams
+				+ " streams each, " + megabytes + " MB");
+		try {
+			for (String path : new String[] { "copy", "send", "copy", "send" }) {
+				run(path, clients, streams, song.length());
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static void run(String path, int clients, final int streams,
+			final long length) throws Exception {
+		final URL url = new URL("http://localhost:" + PORT + "/" + path);
+		final AtomicLong received = new AtomicLong();
+		Thread[] t = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			t[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					byte[] buf = new byte[64 * 1024];
+					try {
+						for (int j = 0; j < streams; j++) {
+							HttpURLConnection get = (HttpURLConnection) url
+									.openConnection();
+							InputStream in = get.getInputStream();
+							long total = 0;
+							int read;
+							while ((read = in.read(buf)) != -1) {
+								total += read;
+							}
+							in.close();
+							if (total != length) {
+								throw new IOException("Received " + total
+										+ " bytes out of " + length);
+							}
+							received.addAndGet(total);
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+
+		long cpu = processCpuTime();
+		long t1 = System.nanoTime();
+		for (Thread thread : t) {
+			thread.start();
+		}
+		for (Thread thread : t) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - t1;
+		String perStream = "?";
+		if (cpu >= 0) {
+			cpu = processCpuTime() - cpu;
+			perStream = "" + (cpu / (clients * streams) / 1000);
+		}
+
+		System.out.println(path + ": " + (received.get() * 1000 / elapsed)
+				+ " MB/s, " + perStream + " us CPU/stream");
+	}
+
+	/**
+	 * @return CPU time used by the process in nanoseconds, -1 if unknown
+	 */
+	private static long processCpuTime() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os)
+					.getProcessCpuTime();
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,120 @@
+/* This file is part of Wissl - Copyright (C) 2013 Mathieu Schnoor
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.msch.wissl.server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import fr.msch.wissl.common.Config;
+
+/**
+ * Compares per query latency of {@link DB#getSong(int)} and
+ * {@link DB#getSongFilePath(int)} between embedded connections and
+ * connections through the H2 TCP server.
+ * Not run with the tests, launch manually:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=fr.msch.wissl.server.H2DBBenchmark \
+ *   -Dexec.args="[songs] [queries]"
+ * </pre>
+ *
+ * @author mathieu.schnoor@gmail.com
+ *
+ */
+public final class H2DBBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int songs = (args.length > 0 ? Integer.parseInt(args[0]) : 10000);
+		int queries = (args.length > 1 ? Integer.parseInt(args[1]) : 20000);
+
+		System.setProperty("wsl.db.clean", "true");
+		System.setProperty("wsl.db.path", "$TMP/wsl-bench/H2");
+		System.setProperty("wsl.music.path", "");
+		System.setProperty("wsl.log.file.enabled", "false");
+		System.setProperty("wsl.log.stdout.enabled", "false");
+		File conf = new File("src/main/webapp/config.ini");
+		System.setProperty("wsl.config", conf.getAbsolutePath());
+		Config.create(new File("src/main/webapp").getAbsolutePath());
+		Logger.create();
+
+		System.out.println(songs + " songs, " + queries + " queries");
+		for (boolean embedded : new boolean[] { false, true }) {
+			H2DB db = new H2DB(Config.getDbPath(), embedded);
+			try {
+				addSongs(db, songs);
+				// warm up, then measure
+				run(db, songs, queries);
+				long[] t = run(db, songs, queries);
+				System.out.println((embedded ? "embedded" : "tcp     ")
+						+ " getSong: " + (t[0] / queries / 1000) + " us"
+						+ ", getSongFilePath: " + (t[1] / queries / 1000)
+						+ " us");
+			} finally {
+				db.close();
+			}
+		}
+	}
+
+	static void addSongs(DB db, int count) throws Exception {
+		List<Song> batch = new ArrayList<Song>();
+		for (int i = 0; i < count; i++) {
+			Song s = new Song();
+			s.artist = new Artist();
+			s.artist.name = "artist " + (i / 100);
+			s.album = new Album();
+			s.album.name = "album " + (i / 10);
+			s.album.genre = "";
+			s.album.date = "";
+			s.title = "song " + i;
+			s.artist_name = s.artist.name;
+			s.album_name = s.album.name;
+			s.album.artist_name = s.artist.name;
+			s.format = "audio/mpeg";
+			s.filepath = "/music/" + s.artist_name + "/" + s.album_name + "/"
+					+ i + ".mp3";
+			s.hash = Library.hashPath(s.filepath);
+			batch.add(s);
+			if (batch.size() == 128) {
+				db.addSongs(batch);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			db.addSongs(batch);
+		}
+	}
+
+	/**
+	 * @return total nanoseconds spent in getSong and getSongFilePath
+	 */
+	private static long[] run(DB db, int songs, int queries) throws Exception {
+		Random rand = new Random(42);
+		long[] ret = new long[2];
+		for (int i = 0; i < queries; i++) {
+			int n = rand.nextInt(songs);
+			long t1 = System.nanoTime();
+			db.getSong(n + 1);
+			long t2 = System.nanoTime();
+			db.getSongFilePath(n + 1);
+			long t3 = System.nanoTime();
+			ret[0] += t2 - t1;
+			ret[1] += t3 - t2;
+		}
+		return ret;
+	}
+}
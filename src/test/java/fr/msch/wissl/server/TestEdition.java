@@ -89,6 +89,12 @@ public class TestEdition extends TServer {
 		int foo_id = obj.getJSONArray("artists").getJSONObject(0).getInt("id");
 		int bob_id = -1;
 
+		get = new GetMethod(URL + "artists");
+		get.addRequestHeader("sessionId", this.user_sessionId);
+		client.executeMethod(get);
+		assertEquals(200, get.getStatusCode());
+		String etag = get.getResponseHeader("ETag").getValue();
+
 		// rename artist 'Foo' to 'Glouglou'
 		post = new PostMethod(URL + "edit/artist");
 		post.addRequestHeader("sessionId", this.admin_sessionId);
@@ -99,11 +105,13 @@ public class TestEdition extends TServer {
 		// wait for indexer
 		checkStats(rt);
 
-		// list artists: 'Bob' and 'Glouglou'
+		// list artists: 'Bob' and 'Glouglou', edition changed the version
 		get = new GetMethod(URL + "artists");
 		get.addRequestHeader("sessionId", this.user_sessionId);
+		get.addRequestHeader("If-None-Match", etag);
 		client.executeMethod(get);
 		assertEquals(200, get.getStatusCode());
+		assertFalse(etag.equals(get.getResponseHeader("ETag").getValue()));
 		obj = new JSONObject(get.getResponseBodyAsString());
 		JSONArray arr = obj.getJSONArray("artists");
 		assertEquals(2, arr.length());
@@ -0,0 +1,102 @@
+/* This file is part of Wissl - Copyright (C) 2013 Mathieu Schnoor
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.msch.wissl.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * Sends a file larger than 2 GB through Jetty, which cannot be mapped
+ * in memory at once: the file is sparse, so it takes no disk space.
+ * 
+ * @author mathieu.schnoor@gmail.com
+ *
+ */
+public class TestFileSender extends TestCase {
+
+	private static final int PORT = 8889;
+
+	public void testLargeFile() throws Exception {
+		final File f = File.createTempFile("wsl-large", ".mp3");
+		f.deleteOnExit();
+		final long length = Integer.MAX_VALUE + 4096L;
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.setLength(length);
+			raf.seek(length - 1);
+			raf.write(42);
+		} finally {
+			raf.close();
+		}
+
+		Server server = new Server(PORT);
+		ServletContextHandler context = new ServletContextHandler();
+		context.setContextPath("/");
+		context.addServlet(new ServletHolder(new HttpServlet() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void doGet(HttpServletRequest req,
+					HttpServletResponse resp) throws IOException {
+				resp.setContentType("audio/mpeg");
+				resp.setHeader("Content-Length", "" + length);
+				FileSender.send(f, 0, length, resp.getOutputStream());
+			}
+		}), "/large");
+		server.setHandler(context);
+		server.start();
+
+		try {
+			HttpURLConnection get = (HttpURLConnection) new URL(
+					"http://localhost:" + PORT + "/large").openConnection();
+			Assert.assertEquals(200, get.getResponseCode());
+			InputStream in = get.getInputStream();
+			byte[] buf = new byte[256 * 1024];
+			long total = 0;
+			int read, last = -1;
+			try {
+				while ((read = in.read(buf)) != -1) {
+					total += read;
+					if (read > 0) {
+						last = buf[read - 1];
+					}
+				}
+			} finally {
+				in.close();
+			}
+			Assert.assertEquals(length, total);
+			Assert.assertEquals(42, last);
+		} finally {
+			server.stop();
+			f.delete();
+		}
+	}
+}
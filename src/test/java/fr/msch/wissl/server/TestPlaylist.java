@@ -183,8 +183,8 @@ public class TestPlaylist extends TServer {
 		int[] song_ids = new int[4];
 		int album_id;
 
-		// search for 'o': 4 songs, 1 album with 1 song
-		get = new GetMethod(URL + "search/o");
+		// search for 't': 5 songs, keep 4 of them
+		get = new GetMethod(URL + "search/t");
 		get.addRequestHeader("sessionId", user_sessionId);
 		client.executeMethod(get);
 		assertEquals(200, get.getStatusCode());
@@ -193,6 +193,13 @@ public class TestPlaylist extends TServer {
 		for (int i = 0; i < 4; i++) {
 			song_ids[i] = songs.getJSONObject(i).getInt("id");
 		}
+
+		// search for 'ok': 1 album with 1 song
+		get = new GetMethod(URL + "search/ok");
+		get.addRequestHeader("sessionId", user_sessionId);
+		client.executeMethod(get);
+		assertEquals(200, get.getStatusCode());
+		obj = new JSONObject(get.getResponseBodyAsString());
 		JSONObject ok = obj.getJSONArray("albums").getJSONObject(0);
 		album_id = ok.getInt("id");
 
@@ -295,6 +302,53 @@ public class TestPlaylist extends TServer {
 		client.executeMethod(get);
 		assertEquals(404, get.getStatusCode());
 
+		// playlist/move as wrong user
+		post = new PostMethod(URL + "playlist/" + bar.id + "/move");
+		post.addRequestHeader("sessionId", admin_sessionId);
+		post.addParameter("song_ids[]", "" + s5.id);
+		post.addParameter("position", "0");
+		client.executeMethod(post);
+		assertEquals(403, post.getStatusCode());
+
+		// playlist/move last and first songs to the beginning
+		post = new PostMethod(URL + "playlist/" + bar.id + "/move");
+		post.addRequestHeader("sessionId", user_sessionId);
+		post.addParameter("song_ids[]", "" + s5.id);
+		post.addParameter("song_ids[]", "" + song_ids[0]);
+		post.addParameter("position", "0");
+		client.executeMethod(post);
+		assertEquals(204, post.getStatusCode());
+
+		// check song list: 5th, 1st, 4th
+		get = new GetMethod(URL + "playlist/" + bar.id + "/songs");
+		get.addRequestHeader("sessionId", user_sessionId);
+		client.executeMethod(get);
+		assertEquals(200, get.getStatusCode());
+		arr = new JSONObject(get.getResponseBodyAsString())
+				.getJSONArray("playlist");
+		assertEquals(3, arr.length());
+		assertEquals(s5, new Song(arr.getJSONObject(0).toString()));
+		assertEquals(new Song(songs.getJSONObject(0).toString()), new Song(arr
+				.getJSONObject(1).toString()));
+		assertEquals(new Song(songs.getJSONObject(3).toString()), new Song(arr
+				.getJSONObject(2).toString()));
+
+		// move 5th song past the end
+		post = new PostMethod(URL + "playlist/" + bar.id + "/move");
+		post.addRequestHeader("sessionId", user_sessionId);
+		post.addParameter("song_ids[]", "" + s5.id);
+		post.addParameter("position", "10");
+		client.executeMethod(post);
+		assertEquals(204, post.getStatusCode());
+
+		get = new GetMethod(URL + "playlist/" + bar.id + "/song/2");
+		get.addRequestHeader("sessionId", admin_sessionId);
+		client.executeMethod(get);
+		assertEquals(200, get.getStatusCode());
+		obj = new JSONObject(get.getResponseBodyAsString())
+				.getJSONObject("song");
+		assertEquals(s5, new Song(obj.toString()));
+
 		// playlist/create-add 'bar' with other songs and clear
 		post = new PostMethod(URL + "playlist/create-add");
 		post.addRequestHeader("sessionId", user_sessionId);
@@ -473,6 +527,30 @@ public class TestPlaylist extends TServer {
 			randSet.add(ss);
 		}
 
+		// re-create 'titi' with at most one song per artist
+		post = new PostMethod(URL + "playlist/random");
+		post.addRequestHeader("sessionId", user_sessionId);
+		post.addParameter("number", "50");
+		post.addParameter("name", "titi");
+		post.addParameter("max_per_artist", "1");
+		client.executeMethod(post);
+		assertEquals(200, post.getStatusCode());
+		obj = new JSONObject(post.getResponseBodyAsString());
+		int added = obj.getInt("added");
+		assertTrue(added > 1 && added < 24);
+		get = new GetMethod(URL + "playlist/" + rand.id + "/songs");
+		get.addRequestHeader("sessionId", user_sessionId);
+		client.executeMethod(get);
+		assertEquals(200, get.getStatusCode());
+		arr = new JSONObject(get.getResponseBodyAsString())
+				.getJSONArray("playlist");
+		assertEquals(added, arr.length());
+		HashSet<String> artistSet = new HashSet<String>();
+		for (int i = 0; i < arr.length(); i++) {
+			Song ss = new Song(arr.getJSONObject(i).toString());
+			assertTrue(artistSet.add(ss.artist_name));
+		}
+
 		// re-create 'titi' with 10 songs
 		post = new PostMethod(URL + "playlist/random");
 		post.addRequestHeader("sessionId", user_sessionId);
@@ -487,6 +565,32 @@ public class TestPlaylist extends TServer {
 		assertEquals(10, rand.songs);
 		assertEquals("titi", rand.name);
 
+		// invalid max per artist: 400, 'titi' is unchanged
+		post = new PostMethod(URL + "playlist/random");
+		post.addRequestHeader("sessionId", user_sessionId);
+		post.addParameter("number", "10");
+		post.addParameter("name", "titi");
+		post.addParameter("max_per_artist", "-1");
+		client.executeMethod(post);
+		assertEquals(400, post.getStatusCode());
+
+		// no song for this genre: error, 'titi' is unchanged
+		post = new PostMethod(URL + "playlist/random");
+		post.addRequestHeader("sessionId", user_sessionId);
+		post.addParameter("number", "10");
+		post.addParameter("name", "titi");
+		post.addParameter("genre", "no such genre");
+		client.executeMethod(post);
+		assertFalse(200 == post.getStatusCode());
+
+		get = new GetMethod(URL + "playlist/" + rand.id + "/songs");
+		get.addRequestHeader("sessionId", user_sessionId);
+		client.executeMethod(get);
+		assertEquals(200, get.getStatusCode());
+		arr = new JSONObject(get.getResponseBodyAsString())
+				.getJSONArray("playlist");
+		assertEquals(10, arr.length());
+
 		// playlists for user: 'foo', 'bar', 'toto', 'titi'
 		get = new GetMethod(URL + "playlists");
 		get.addRequestHeader("sessionId", user_sessionId);